@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2025 Muhammad Lukman Nasaruddin <lukman.nasaruddin@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package my.unifi.eset.keycloak.piidataencryption.benchmark;
+
+import java.io.File;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks once for each of the thread counts listed in the
+ * jmh.threads system property (comma-separated) and writes one JSON result
+ * file per thread count into the jmh.resultDir directory.
+ *
+ * @author MLukman (https://github.com/MLukman)
+ */
+public final class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException {
+        String include = System.getProperty("jmh.include", BenchmarkRunner.class.getPackageName() + ".*");
+        String resultDir = System.getProperty("jmh.resultDir", ".");
+        for (String threadCount : System.getProperty("jmh.threads", "1").split(",")) {
+            int threads = Integer.parseInt(threadCount.trim());
+            Options options = new OptionsBuilder()
+                    .include(include)
+                    .threads(threads)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(new File(resultDir, "jmh-result-" + threads + "t.json").getPath())
+                    .build();
+            new Runner(options).run();
+        }
+    }
+
+    // Makes this class un-instantiatable
+    private BenchmarkRunner() {
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2025 Muhammad Lukman Nasaruddin <lukman.nasaruddin@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package my.unifi.eset.keycloak.piidataencryption.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import my.unifi.eset.keycloak.piidataencryption.listeners.EntityListener;
+import my.unifi.eset.keycloak.piidataencryption.utils.EncryptionUtils;
+import my.unifi.eset.keycloak.piidataencryption.utils.LogicUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the encryption, decryption & hashing operations that are executed
+ * for every user field & attribute that is written or loaded.
+ *
+ * The encryption key is read from the KC_PII_ENCKEY environment variable,
+ * which the benchmark profile in pom.xml sets to a throwaway value.
+ *
+ * @author MLukman (https://github.com/MLukman)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CryptoBenchmark {
+
+    @Param({Payloads.EMAIL, Payloads.MAX_VALUE, Payloads.LONG_VALUE})
+    String size;
+
+    String plainValue;
+    String encryptedValue;
+    String hashValue;
+
+    @Setup
+    public void setup() {
+        plainValue = Payloads.of(size);
+        encryptedValue = EncryptionUtils.encryptValue(plainValue);
+        if (!EncryptionUtils.isEncryptedValue(encryptedValue)) {
+            throw new IllegalStateException("Encryption is not working; is KC_PII_ENCKEY set to a valid key?");
+        }
+        hashValue = LogicUtils.hash(plainValue);
+    }
+
+    @Benchmark
+    public String encryptValue() {
+        return EncryptionUtils.encryptValue(plainValue);
+    }
+
+    @Benchmark
+    public String decryptValue() {
+        return EncryptionUtils.decryptValue(encryptedValue);
+    }
+
+    @Benchmark
+    public boolean isEncryptedValue() {
+        return EncryptionUtils.isEncryptedValue(encryptedValue);
+    }
+
+    @Benchmark
+    public String hash() {
+        return LogicUtils.hash(plainValue);
+    }
+
+    @Benchmark
+    public boolean isHash() {
+        return LogicUtils.isHash(hashValue);
+    }
+
+    @Benchmark
+    public boolean validateHashValueVsEncryptedValue() {
+        return EntityListener.validateHashValueVsEncryptedValue(hashValue, encryptedValue);
+    }
+
+}
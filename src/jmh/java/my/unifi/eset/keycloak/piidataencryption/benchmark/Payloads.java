@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2025 Muhammad Lukman Nasaruddin <lukman.nasaruddin@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package my.unifi.eset.keycloak.piidataencryption.benchmark;
+
+/**
+ * Sample plain text values of the sizes typically stored by Keycloak: short
+ * values such as emails, values at the 255-character USER_ATTRIBUTE.VALUE
+ * limit and multi-KB values that go into USER_ATTRIBUTE.LONG_VALUE.
+ *
+ * @author MLukman (https://github.com/MLukman)
+ */
+final class Payloads {
+
+    static final String EMAIL = "email";
+    static final String MAX_VALUE = "255";
+    static final String LONG_VALUE = "4096";
+
+    static String of(String size) {
+        return switch (size) {
+            case EMAIL ->
+                "john.doe@example.com";
+            case MAX_VALUE ->
+                repeat(255);
+            case LONG_VALUE ->
+                repeat(4096);
+            default ->
+                throw new IllegalArgumentException("Unknown payload size: " + size);
+        };
+    }
+
+    private static String repeat(int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append((char) ('a' + (i % 26)));
+        }
+        return sb.toString();
+    }
+
+    // Makes this class un-instantiatable
+    private Payloads() {
+    }
+
+}
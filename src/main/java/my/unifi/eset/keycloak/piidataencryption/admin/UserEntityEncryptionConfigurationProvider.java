@@ -17,18 +17,17 @@
 package my.unifi.eset.keycloak.piidataencryption.admin;
 
 import my.unifi.eset.keycloak.piidataencryption.utils.LogicUtils;
-import jakarta.persistence.EntityManager;
-import jakarta.persistence.FlushModeType;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import my.unifi.eset.keycloak.piidataencryption.listeners.EventListenerFactory;
 import my.unifi.eset.keycloak.piidataencryption.jpa.EncryptedUserProvider;
 import my.unifi.eset.keycloak.piidataencryption.utils.EncryptionUtils;
+import my.unifi.eset.keycloak.piidataencryption.utils.MigrationEngine;
+import my.unifi.eset.keycloak.piidataencryption.utils.MigrationJobRunner;
 import org.keycloak.Config;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.component.ComponentValidationException;
-import org.keycloak.connections.jpa.JpaConnectionProvider;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
@@ -118,21 +117,10 @@ public class UserEntityEncryptionConfigurationProvider implements UiTabProvider,
         boolean toEncrypt = model.get("enable", false);
         if (session.getProvider(UserProvider.class) instanceof EncryptedUserProvider) {
             LogicUtils.setUserEncryptionEnabled(realm, toEncrypt);
-            if (toEncrypt) {
-                EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
-                em.setFlushMode(FlushModeType.COMMIT);
-                LogicUtils.encryptExistingUserEntities(session, em, realm);
-                em.flush();
-            }
         } else {
             toEncrypt = false;
         }
-        if (!toEncrypt) {
-            EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
-            em.setFlushMode(FlushModeType.COMMIT);
-            LogicUtils.decryptExistingUserEntities(em, realm);
-            em.flush();
-        }
+        MigrationJobRunner.enqueue(session, realm, toEncrypt ? MigrationEngine.Mode.ENCRYPT : MigrationEngine.Mode.DECRYPT);
     }
 
 }
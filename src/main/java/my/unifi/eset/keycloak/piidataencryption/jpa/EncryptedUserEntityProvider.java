@@ -18,6 +18,10 @@ package my.unifi.eset.keycloak.piidataencryption.jpa;
 
 import java.util.Arrays;
 import java.util.List;
+import my.unifi.eset.keycloak.piidataencryption.keys.PiiKeyWatcher;
+import my.unifi.eset.keycloak.piidataencryption.utils.KeyRotationTask;
+import my.unifi.eset.keycloak.piidataencryption.utils.MigrationJobRunner;
+import my.unifi.eset.keycloak.piidataencryption.utils.RealmDataKeys;
 import org.keycloak.Config;
 import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
 import org.keycloak.connections.jpa.entityprovider.JpaEntityProviderFactory;
@@ -26,7 +30,9 @@ import org.keycloak.models.KeycloakSessionFactory;
 
 /**
  * Applies the Liquibase changelog that contains the database table definition for
- * USER_ENTITY_ENCRYPTED and register the corresponding entity class.
+ * USER_ENTITY_ENCRYPTED and register the corresponding entity class. Also
+ * loads the encryption keys and schedules the background migration jobs that
+ * use these tables.
  */
 public class EncryptedUserEntityProvider implements JpaEntityProviderFactory, JpaEntityProvider {
 
@@ -41,6 +47,10 @@ public class EncryptedUserEntityProvider implements JpaEntityProviderFactory, Jp
 
     @Override
     public void postInit(KeycloakSessionFactory ksf) {
+        PiiKeyWatcher.start(ksf);
+        RealmDataKeys.register(ksf);
+        MigrationJobRunner.register(ksf);
+        KeyRotationTask.register(ksf);
     }
 
     @Override
@@ -54,7 +64,7 @@ public class EncryptedUserEntityProvider implements JpaEntityProviderFactory, Jp
 
     @Override
     public List<Class<?>> getEntities() {
-        return Arrays.asList(EncryptedUserEntity.class, EncryptedUserAttributeEntity.class);
+        return Arrays.asList(EncryptedUserEntity.class, EncryptedUserAttributeEntity.class, UserEncryptionJobEntity.class, UserBlindIndexEntity.class, RealmDataKeyEntity.class, KeyRotationPassEntity.class);
     }
 
     @Override
@@ -18,50 +18,179 @@ package my.unifi.eset.keycloak.piidataencryption.jpa;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.persistence.EntityManager;
+import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.CriteriaQuery;
+import jakarta.persistence.criteria.Path;
+import jakarta.persistence.criteria.Predicate;
+import jakarta.persistence.criteria.Root;
+import jakarta.persistence.criteria.Subquery;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import my.unifi.eset.keycloak.piidataencryption.listeners.EncryptedEntityLookup;
+import my.unifi.eset.keycloak.piidataencryption.listeners.EncryptionTracker;
+import my.unifi.eset.keycloak.piidataencryption.utils.AttributeEncryptionPolicy;
+import my.unifi.eset.keycloak.piidataencryption.utils.BlindIndex;
 import my.unifi.eset.keycloak.piidataencryption.utils.LogicUtils;
+import my.unifi.eset.keycloak.piidataencryption.utils.MigrationJobRunner;
+import my.unifi.eset.keycloak.piidataencryption.utils.UserLookupCache;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
 import org.jboss.logging.Logger;
+import org.keycloak.authorization.fgap.AdminPermissionsSchema;
+import org.keycloak.models.GroupModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
 import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
 import org.keycloak.models.jpa.JpaUserProvider;
+import org.keycloak.models.jpa.PaginationUtils;
+import org.keycloak.models.jpa.entities.UserEntity;
+import org.keycloak.utils.StreamsUtil;
 
 public class EncryptedUserProvider extends JpaUserProvider {
 
     private static final Logger logger = Logger.getLogger(EncryptedUserProvider.class);
+    private static final Set<String> SINGLE_PASS_SEARCH_KEYS = Set.of(UserModel.SEARCH, UserModel.EXACT, UserModel.INCLUDE_SERVICE_ACCOUNT,
+            UserModel.USERNAME, UserModel.EMAIL, UserModel.FIRST_NAME, UserModel.LAST_NAME, UserModel.ENABLED, UserModel.EMAIL_VERIFIED);
     private final KeycloakSession ks;
 
     public EncryptedUserProvider(KeycloakSession session, EntityManager em) {
         super(session, em);
         this.ks = session;
+        EncryptionTracker.enlist(session, em);
     }
 
     @Override
     public UserModel getUserByUsername(RealmModel realm, String username) {
-        UserModel user;
-        if (null != (user = super.getUserByUsername(realm, username))) {
-            return user;
-        }
-        logger.debugf("getUserByUsername (using hash): " + username);
-        return super.getUserByUsername(realm, LogicUtils.hash(username));
+        return getUserByPlainOrHash(realm, UserLookupCache.USERNAME, username, (value) -> super.getUserByUsername(realm, value));
     }
 
     @Override
     public UserModel getUserByEmail(RealmModel realm, String email) {
-        UserModel user;
-        if (null != (user = super.getUserByEmail(realm, email))) {
-            return user;
+        return getUserByPlainOrHash(realm, UserLookupCache.EMAIL, email, (value) -> super.getUserByEmail(realm, value));
+    }
+
+    /**
+     * Looks a user up by a value that is stored either as is or as its hash,
+     * querying first the form in which users of the realm most likely are.
+     *
+     * @param realm The realm
+     * @param field UserLookupCache.USERNAME or UserLookupCache.EMAIL
+     * @param value The plain value to look up
+     * @param query The lookup of the superclass
+     * @return The user or null if not found
+     */
+    private UserModel getUserByPlainOrHash(RealmModel realm, String field, String value, Function<String, UserModel> query) {
+        if (value == null) {
+            return query.apply(value);
         }
-        logger.debugf("getUserByEmail (using hash): " + email);
-        return super.getUserByEmail(realm, LogicUtils.hash(email));
+        UserLookupCache cache = LogicUtils.getUserLookupCache();
+        String hash = LogicUtils.hash(value);
+        String state = realm.getAttribute(MigrationJobRunner.REALM_ATTRIBUTE_STATE);
+        boolean migrating = UserEncryptionJobEntity.STATE_PENDING.equals(state) || UserEncryptionJobEntity.STATE_RUNNING.equals(state)
+                || UserEncryptionJobEntity.STATE_FAILED.equals(state);
+        boolean hashFirst = cache.isHashFirst(realm.getId(), LogicUtils.isUserEncryptionEnabled(ks, realm), migrating);
+        UserModel user = query.apply(hashFirst ? hash : value);
+        if (user == null) {
+            logger.debugf("Event: USER_LOOKUP_FALLBACK, Realm: %s, Field: %s, Form: %s", realm.getId(), field, hashFirst ? "plain" : "hash");
+            user = query.apply(hashFirst ? value : hash);
+            if (user != null && migrating) {
+                cache.found(realm.getId(), !hashFirst);
+            }
+        }
+        return user;
     }
 
     @Override
     public Stream<UserModel> searchForUserStream(RealmModel realm, Map<String, String> attributes, Integer firstResult, Integer maxResults) {
-        List<UserModel> results = super.searchForUserStream(realm, attributes, firstResult, maxResults).toList();
+        if (!isSinglePassSearch(attributes.keySet(), ks.getAttribute(UserModel.GROUPS))) {
+            return searchForUserStreamInTwoPasses(realm, attributes, firstResult, maxResults);
+        }
+        CriteriaBuilder builder = em.getCriteriaBuilder();
+        CriteriaQuery<UserEntity> query = builder.createQuery(UserEntity.class);
+        Root<UserEntity> root = query.from(UserEntity.class);
+        List<Predicate> predicates = new ArrayList<>();
+        predicates.add(builder.equal(root.get("realmId"), realm.getId()));
+        boolean exact = Boolean.parseBoolean(attributes.get(UserModel.EXACT));
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            String value = attribute.getValue();
+            if (value == null) {
+                continue;
+            }
+            switch (attribute.getKey()) {
+                case UserModel.SEARCH -> {
+                    for (String token : value.trim().split("\\s+")) {
+                        predicates.add(orBlindIndexed(query, builder, root, realm, searchTokenPredicate(builder, root, token), token, BlindIndex.USER_FIELDS, token.startsWith("*")));
+                    }
+                }
+                case UserModel.USERNAME, UserModel.EMAIL -> {
+                    Path<String> column = root.get(attribute.getKey());
+                    Predicate predicate = orHashed(builder, exact
+                            ? builder.equal(column, value.toLowerCase())
+                            : builder.like(column, "%" + value.toLowerCase() + "%"), value, column);
+                    predicates.add(exact ? predicate : orBlindIndexed(query, builder, root, realm, predicate, value, List.of(attribute.getKey()), true));
+                }
+                case UserModel.FIRST_NAME, UserModel.LAST_NAME -> {
+                    Path<String> column = root.get(attribute.getKey());
+                    Predicate predicate = orHashed(builder, exact
+                            ? builder.equal(builder.lower(column), value.toLowerCase())
+                            : builder.like(builder.lower(column), "%" + value.toLowerCase() + "%"), value, column);
+                    predicates.add(exact ? predicate : orBlindIndexed(query, builder, root, realm, predicate, value, List.of(attribute.getKey()), true));
+                }
+                case UserModel.ENABLED, UserModel.EMAIL_VERIFIED ->
+                    predicates.add(builder.equal(root.get(attribute.getKey()), Boolean.valueOf(value.toLowerCase())));
+                default -> {
+                }
+            }
+        }
+        if (!Boolean.parseBoolean(attributes.get(UserModel.INCLUDE_SERVICE_ACCOUNT))) {
+            predicates.add(root.get("serviceAccountClientLink").isNull());
+        }
+        // this provider supplies the group membership filters of fine-grained admin permissions
+        predicates.addAll(AdminPermissionsSchema.SCHEMA.applyAuthorizationFilters(ks, AdminPermissionsSchema.USERS, this, realm, builder, query, root));
+        query.distinct(true)
+                .where(predicates.toArray(Predicate[]::new))
+                .orderBy(builder.asc(root.get("username")));
+        UserProvider users = ks.users();
+        return prefetched(StreamsUtil.closing(PaginationUtils.paginateQuery(em.createQuery(query), firstResult, maxResults).getResultStream())
+                .map((ue) -> users.getUserById(realm, ue.getId()))
+                .filter(Objects::nonNull));
+    }
+
+    /**
+     * Checks if a search can be done in a single pass. Searches by admins whose
+     * fine-grained admin permissions (v1) restrict them to the members of some
+     * groups are left to JpaUserProvider, which applies that restriction.
+     *
+     * @param keys The search keys
+     * @param adminGroups The UserModel.GROUPS attribute of the session
+     * @return true if single pass
+     */
+    static boolean isSinglePassSearch(Set<String> keys, Object adminGroups) {
+        return adminGroups == null && SINGLE_PASS_SEARCH_KEYS.containsAll(keys);
+    }
+
+    /**
+     * The original search: the plaintext search first, then the same search
+     * again with the values of the encrypted fields replaced with their hashes
+     * if nothing was found. Only used for searches that the single-pass
+     * search does not support, see isSinglePassSearch().
+     */
+    private Stream<UserModel> searchForUserStreamInTwoPasses(RealmModel realm, Map<String, String> attributes, Integer firstResult, Integer maxResults) {
+        List<UserModel> results = prefetched(super.searchForUserStream(realm, attributes, firstResult, maxResults)).toList();
         if (!results.isEmpty()) {
             return results.stream();
         }
@@ -71,21 +200,149 @@ public class EncryptedUserProvider extends JpaUserProvider {
             logger.warnf("searchForUserStream (using hash): <unable to convert into JSON>");
         }
         List<String> encrypted = Arrays.asList(UserModel.SEARCH, "username", "email", "firstName", "lastName");
+        AttributeEncryptionPolicy policy = AttributeEncryptionPolicy.of(ks, realm);
         for (Map.Entry<String, String> attribute : attributes.entrySet()) {
-            if (encrypted.contains(attribute.getKey()) || LogicUtils.shouldEncryptAttribute(ks, realm.getId(), attribute.getKey())) {
+            if (encrypted.contains(attribute.getKey()) || policy.shouldEncrypt(attribute.getKey())) {
                 attribute.setValue(LogicUtils.hash(attribute.getValue()));
             }
         }
-        return super.searchForUserStream(realm, attributes, firstResult, maxResults);
+        return prefetched(super.searchForUserStream(realm, attributes, firstResult, maxResults));
+    }
+
+    /**
+     * Same semantics as the per-token predicate of JpaUserProvider: exact
+     * match if the token is double-quoted, prefix match (with * as wildcard)
+     * otherwise, on username, email, first name or last name; or else the hash
+     * of the token against the same columns of encrypted users.
+     */
+    private Predicate searchTokenPredicate(CriteriaBuilder builder, Root<UserEntity> root, String token) {
+        String value = token.toLowerCase();
+        List<Path<String>> columns = List.of(root.get(UserModel.USERNAME), root.get(UserModel.EMAIL), root.get(UserModel.FIRST_NAME), root.get(UserModel.LAST_NAME));
+        List<Predicate> predicates = new ArrayList<>();
+        if (value.length() >= 2 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"') {
+            value = value.substring(1, value.length() - 1);
+            predicates.add(builder.equal(columns.get(0), value));
+            predicates.add(builder.equal(columns.get(1), value));
+            predicates.add(builder.equal(builder.lower(columns.get(2)), value));
+            predicates.add(builder.equal(builder.lower(columns.get(3)), value));
+        } else {
+            value = value.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_").replace("*", "%");
+            if (value.isEmpty() || value.charAt(value.length() - 1) != '%') {
+                value += "%";
+            }
+            predicates.add(builder.like(columns.get(0), value, '\\'));
+            predicates.add(builder.like(columns.get(1), value, '\\'));
+            predicates.add(builder.like(builder.lower(columns.get(2)), value, '\\'));
+            predicates.add(builder.like(builder.lower(columns.get(3)), value, '\\'));
+        }
+        return orHashed(builder, builder.or(predicates.toArray(Predicate[]::new)), token, columns.toArray(Path[]::new));
+    }
+
+    /**
+     * Extends a predicate to also match the encrypted users that have any of
+     * the fields matching the searched term according to the blind index, if
+     * enabled and usable for the term.
+     *
+     * @param anywhere true if the predicate matches the term anywhere in the
+     * value, false if only at the start
+     */
+    private static Predicate orBlindIndexed(CriteriaQuery<?> query, CriteriaBuilder builder, Root<UserEntity> root, RealmModel realm, Predicate predicate, String term, Collection<String> fields, boolean anywhere) {
+        List<String> hashes = BlindIndex.searchHashes(term, fields, anywhere);
+        if (hashes.isEmpty()) {
+            return predicate;
+        }
+        Subquery<String> indexed = query.subquery(String.class);
+        Root<UserBlindIndexEntity> index = indexed.from(UserBlindIndexEntity.class);
+        indexed.select(index.get("userId"))
+                .where(builder.equal(index.get("realmId"), realm.getId()), index.get("token").in(hashes));
+        return builder.or(predicate, root.get("id").in(indexed));
+    }
+
+    /**
+     * Extends a plaintext predicate to also match the hash of the searched
+     * value, so that users that are encrypted and users that are not (e.g.
+     * while the realm is being migrated) are found by the same query. Hashes
+     * can only be matched exactly, so quotes and wildcards are dropped first.
+     */
+    @SafeVarargs
+    private static Predicate orHashed(CriteriaBuilder builder, Predicate plain, String value, Path<String>... columns) {
+        String normalized = value.replace("\"", "").replace("*", "").trim();
+        if (normalized.isEmpty()) {
+            return plain;
+        }
+        String hash = LogicUtils.hash(normalized);
+        List<Predicate> predicates = new ArrayList<>();
+        predicates.add(plain);
+        for (Path<String> column : columns) {
+            predicates.add(builder.equal(column, hash));
+        }
+        return builder.or(predicates.toArray(Predicate[]::new));
+    }
+
+    @Override
+    public Stream<UserModel> getGroupMembersStream(RealmModel realm, GroupModel group, Integer firstResult, Integer maxResults) {
+        return prefetched(super.getGroupMembersStream(realm, group, firstResult, maxResults));
+    }
+
+    @Override
+    public Stream<UserModel> getGroupMembersStream(RealmModel realm, GroupModel group, String search, Boolean exact, Integer first, Integer max) {
+        return prefetched(super.getGroupMembersStream(realm, group, search, exact, first, max));
+    }
+
+    @Override
+    public Stream<UserModel> getRoleMembersStream(RealmModel realm, RoleModel role, Integer firstResult, Integer maxResults) {
+        return prefetched(super.getRoleMembersStream(realm, role, firstResult, maxResults));
     }
 
     @Override
     public UserModel addUser(RealmModel realm, String id, String username, boolean addDefaultRoles, boolean addDefaultRequiredActions) {
+        // the user row is hashed & its encrypted row written while it is being flushed, see EntityListener
         UserModel userModel = super.addUser(realm, id, username, addDefaultRoles, addDefaultRequiredActions);
-        LogicUtils.encryptUserEntity(ks, em, LogicUtils.getUserEntity(em, userModel.getId()));
-        em.flush();
         logger.debugf("addUser (encrypted): " + username);
         return userModel;
     }
 
+    /**
+     * Wraps a stream of users so that the users are pulled from the underlying
+     * query in batches, each inside a prefetch window, so that the encrypted
+     * rows of each batch are fetched using a single query instead of one query
+     * per user.
+     *
+     * @param users The stream of users to wrap
+     * @return The wrapped stream
+     */
+    protected Stream<UserModel> prefetched(Stream<UserModel> users) {
+        EncryptedEntityLookup lookup = EncryptedEntityLookup.of(em.unwrap(SharedSessionContractImplementor.class));
+        Iterator<UserModel> source = users.iterator();
+        Iterator<UserModel> batched = new Iterator<>() {
+            Iterator<UserModel> current = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                if (!current.hasNext()) {
+                    List<UserModel> batch = new ArrayList<>();
+                    lookup.beginPrefetch();
+                    try {
+                        while (batch.size() < EncryptedEntityLookup.BATCH_SIZE && source.hasNext()) {
+                            batch.add(source.next());
+                        }
+                    } finally {
+                        lookup.endPrefetch();
+                    }
+                    current = batch.iterator();
+                }
+                return current.hasNext();
+            }
+
+            @Override
+            public UserModel next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(batched, Spliterator.ORDERED), false).onClose(users::close);
+    }
+
 }
@@ -16,9 +16,13 @@
 package my.unifi.eset.keycloak.piidataencryption.jpa;
 
 import jakarta.persistence.EntityManager;
+import my.unifi.eset.keycloak.piidataencryption.utils.AttributeEncryptionPolicy;
 import org.keycloak.connections.jpa.JpaConnectionProvider;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserProvider;
+import org.keycloak.models.cache.CachedRealmModel;
 import org.keycloak.models.jpa.JpaUserProviderFactory;
 
 public class EncryptedUserProviderFactory extends JpaUserProviderFactory {
@@ -29,6 +33,21 @@ public class EncryptedUserProviderFactory extends JpaUserProviderFactory {
         return new EncryptedUserProvider(ks, em);
     }
 
+    @Override
+    public void postInit(KeycloakSessionFactory ksf) {
+        super.postInit(ksf);
+        ksf.register((event) -> {
+            if (event instanceof RealmModel.RealmAttributeUpdateEvent rau) {
+                AttributeEncryptionPolicy.invalidate(rau.getRealm().getId());
+            } else if (event instanceof RealmModel.RealmRemovedEvent rr) {
+                AttributeEncryptionPolicy.invalidate(rr.getRealm().getId());
+            } else if (event instanceof CachedRealmModel.RealmCachedEvent rc) {
+                // fired on every node whenever the realm or any of its components has changed
+                AttributeEncryptionPolicy.invalidate(rc.getRealm().getId());
+            }
+        });
+    }
+
     @Override
     public int order() {
         return 1000;
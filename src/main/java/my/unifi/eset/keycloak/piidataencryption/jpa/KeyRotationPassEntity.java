@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2025 Muhammad Lukman Nasaruddin <lukman.nasaruddin@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package my.unifi.eset.keycloak.piidataencryption.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+
+@Entity
+@Table(name = "KEY_ROTATION_PASS")
+public class KeyRotationPassEntity {
+
+    public static final String ID = "current";
+    public static final String STATE_USERS = "USERS";
+    public static final String STATE_ATTRIBUTES = "ATTRIBUTES";
+    public static final String STATE_COMPLETED = "COMPLETED";
+
+    @Id
+    @Column(name = "ID", length = 36)
+    protected String id;
+
+    @Column(name = "KEY_IDS", length = 255)
+    protected String keys;
+
+    @Column(name = "STATUS", length = 16)
+    protected String state;
+
+    @Column(name = "LAST_ID", length = 36)
+    protected String lastId;
+
+    @Column(name = "ROTATED")
+    protected long rotated;
+
+    @Column(name = "FAILED")
+    protected long failed;
+
+    @Column(name = "UPDATED")
+    protected long updated;
+
+    public KeyRotationPassEntity() {
+    }
+
+    public KeyRotationPassEntity(String id) {
+        this.id = id;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getKeys() {
+        return keys;
+    }
+
+    public void setKeys(String keys) {
+        this.keys = keys;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public void setState(String state) {
+        this.state = state;
+    }
+
+    public String getLastId() {
+        return lastId;
+    }
+
+    public void setLastId(String lastId) {
+        this.lastId = lastId;
+    }
+
+    public long getRotated() {
+        return rotated;
+    }
+
+    public void setRotated(long rotated) {
+        this.rotated = rotated;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public void setFailed(long failed) {
+        this.failed = failed;
+    }
+
+    public long getUpdated() {
+        return updated;
+    }
+
+    public void setUpdated(long updated) {
+        this.updated = updated;
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2025 Muhammad Lukman Nasaruddin <lukman.nasaruddin@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package my.unifi.eset.keycloak.piidataencryption.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+
+@Entity
+@Table(name = "REALM_DATA_KEY")
+public class RealmDataKeyEntity {
+
+    @Id
+    @Column(name = "ID", length = 16)
+    protected String id;
+
+    @Column(name = "REALM_ID", length = 36)
+    protected String realmId;
+
+    @Column(name = "WRAPPED_KEY", length = 255)
+    protected String wrappedKey;
+
+    @Column(name = "GENERATION")
+    protected int generation;
+
+    @Column(name = "CREATED")
+    protected long created;
+
+    public RealmDataKeyEntity() {
+    }
+
+    public RealmDataKeyEntity(String id, String realmId, String wrappedKey, int generation, long created) {
+        this.id = id;
+        this.realmId = realmId;
+        this.wrappedKey = wrappedKey;
+        this.generation = generation;
+        this.created = created;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public String getWrappedKey() {
+        return wrappedKey;
+    }
+
+    public void setWrappedKey(String wrappedKey) {
+        this.wrappedKey = wrappedKey;
+    }
+
+    public int getGeneration() {
+        return generation;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+}
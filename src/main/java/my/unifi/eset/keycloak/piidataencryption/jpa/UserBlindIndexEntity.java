@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2025 Muhammad Lukman Nasaruddin <lukman.nasaruddin@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package my.unifi.eset.keycloak.piidataencryption.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+
+@Entity
+@Table(name = "USER_BLIND_INDEX")
+public class UserBlindIndexEntity {
+
+    @Id
+    @Column(name = "ID", length = 36)
+    protected String id;
+
+    @Column(name = "USER_ID", length = 36)
+    protected String userId;
+
+    @Column(name = "REALM_ID", length = 36)
+    protected String realmId;
+
+    @Column(name = "FIELD", length = 255)
+    protected String field;
+
+    @Column(name = "TOKEN", length = 64)
+    protected String token;
+
+    public UserBlindIndexEntity() {
+    }
+
+    public UserBlindIndexEntity(String id, String userId, String realmId, String field, String token) {
+        this.id = id;
+        this.userId = userId;
+        this.realmId = realmId;
+        this.field = field;
+        this.token = token;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2025 Muhammad Lukman Nasaruddin <lukman.nasaruddin@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package my.unifi.eset.keycloak.piidataencryption.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+
+@Entity
+@Table(name = "USER_ENCRYPTION_JOB")
+public class UserEncryptionJobEntity {
+
+    public static final String STATE_PENDING = "PENDING";
+    public static final String STATE_RUNNING = "RUNNING";
+    public static final String STATE_COMPLETED = "COMPLETED";
+    public static final String STATE_FAILED = "FAILED";
+
+    @Id
+    @Column(name = "REALM_ID", length = 36)
+    protected String realmId;
+
+    @Column(name = "OPERATION", length = 16)
+    protected String mode;
+
+    @Column(name = "STATUS", length = 16)
+    protected String state;
+
+    @Column(name = "GENERATION")
+    protected int generation;
+
+    @Column(name = "LAST_USER_ID", length = 36)
+    protected String lastUserId;
+
+    @Column(name = "PROCESSED_USERS")
+    protected long processedUsers;
+
+    @Column(name = "FAILED_RANGES")
+    protected long failedRanges;
+
+    @Column(name = "OWNER_NODE", length = 255)
+    protected String owner;
+
+    @Column(name = "HEARTBEAT")
+    protected long heartbeat;
+
+    @Column(name = "UPDATED")
+    protected long updated;
+
+    public UserEncryptionJobEntity() {
+    }
+
+    public UserEncryptionJobEntity(String realmId) {
+        this.realmId = realmId;
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public void setMode(String mode) {
+        this.mode = mode;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public void setState(String state) {
+        this.state = state;
+    }
+
+    public int getGeneration() {
+        return generation;
+    }
+
+    public void setGeneration(int generation) {
+        this.generation = generation;
+    }
+
+    public String getLastUserId() {
+        return lastUserId;
+    }
+
+    public void setLastUserId(String lastUserId) {
+        this.lastUserId = lastUserId;
+    }
+
+    public long getProcessedUsers() {
+        return processedUsers;
+    }
+
+    public void setProcessedUsers(long processedUsers) {
+        this.processedUsers = processedUsers;
+    }
+
+    public long getFailedRanges() {
+        return failedRanges;
+    }
+
+    public void setFailedRanges(long failedRanges) {
+        this.failedRanges = failedRanges;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public void setOwner(String owner) {
+        this.owner = owner;
+    }
+
+    public long getHeartbeat() {
+        return heartbeat;
+    }
+
+    public void setHeartbeat(long heartbeat) {
+        this.heartbeat = heartbeat;
+    }
+
+    public long getUpdated() {
+        return updated;
+    }
+
+    public void setUpdated(long updated) {
+        this.updated = updated;
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2025 Muhammad Lukman Nasaruddin <lukman.nasaruddin@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package my.unifi.eset.keycloak.piidataencryption.keys;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import javax.crypto.spec.SecretKeySpec;
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.quarkus.runtime.configuration.Configuration;
+
+/**
+ * Reads the encryption key from the KC_PII_ENCKEY environment variable, or
+ * generates one from the JDBC URL of the database, and the previous keys from
+ * the comma-separated KC_PII_ENCKEY_PREVIOUS environment variable. This is the
+ * default key provider.
+ *
+ * @author MLukman (https://github.com/MLukman)
+ */
+public class EnvPiiKeyProviderFactory implements PiiKeyProviderFactory, PiiKeyProvider {
+
+    public static final String ID = "env";
+
+    static final Logger logger = Logger.getLogger(EnvPiiKeyProviderFactory.class);
+
+    @Override
+    public List<SecretKeySpec> getKeys() throws NoSuchAlgorithmException {
+        return loadKeys();
+    }
+
+    /**
+     * Reads the keys from the environment variables. Also used by
+     * EncryptionUtils outside of Keycloak, e.g. in tests & benchmarks.
+     *
+     * @return The keys, primary key first
+     * @throws NoSuchAlgorithmException
+     */
+    public static List<SecretKeySpec> loadKeys() throws NoSuchAlgorithmException {
+        String rawkey = System.getenv("KC_PII_ENCKEY");
+        if (rawkey == null || rawkey.isBlank()) {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            String dbUrl = Configuration.getKcConfigValue("db-url").getRawValue();
+            if (dbUrl == null || dbUrl.isBlank()) {
+                throw new IllegalArgumentException("Unable to generate encryption key from JDBC URL of the database. Please explicitly set the encryption key using KC_PII_ENCKEY environment variable.");
+            }
+            md.update(dbUrl.getBytes());
+            rawkey = HexFormat.of().formatHex(md.digest()).toLowerCase();
+            logger.warn(String.format("Encryption key %s was generated using MD5 hash of JDBC URL of the database. It is recommended to set this key as KC_PII_ENCKEY environment variable.", rawkey));
+        }
+        return PiiKeyProvider.toKeys(rawkey, System.getenv("KC_PII_ENCKEY_PREVIOUS"));
+    }
+
+    @Override
+    public PiiKeyProvider create(KeycloakSession ks) {
+        return this;
+    }
+
+    @Override
+    public void init(Config.Scope scope) {
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory ksf) {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public int order() {
+        // the default provider unless spi-pii-key-provider says otherwise
+        return 100;
+    }
+
+}
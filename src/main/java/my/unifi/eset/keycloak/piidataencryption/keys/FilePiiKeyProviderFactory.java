@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2025 Muhammad Lukman Nasaruddin <lukman.nasaruddin@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package my.unifi.eset.keycloak.piidataencryption.keys;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import javax.crypto.spec.SecretKeySpec;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+/**
+ * Reads the encryption keys from a text file set using the
+ * spi-pii-key-file-path option, e.g. a mounted Kubernetes secret. The first
+ * line is the primary key and any following lines are the previous keys,
+ * ignoring blank lines and lines starting with #.
+ *
+ * @author MLukman (https://github.com/MLukman)
+ */
+public class FilePiiKeyProviderFactory implements PiiKeyProviderFactory, PiiKeyProvider {
+
+    public static final String ID = "file";
+
+    private Path path;
+
+    @Override
+    public List<SecretKeySpec> getKeys() throws IOException {
+        if (path == null) {
+            throw new IllegalArgumentException("The spi-pii-key-file-path option is required by the file key provider");
+        }
+        List<SecretKeySpec> keys = Files.readAllLines(path, StandardCharsets.UTF_8).stream()
+                .map(String::trim)
+                .filter((line) -> !line.isEmpty() && !line.startsWith("#"))
+                .map(PiiKeyProvider::toKey)
+                .toList();
+        if (keys.isEmpty()) {
+            throw new IllegalArgumentException("No encryption key found in " + path);
+        }
+        return keys;
+    }
+
+    @Override
+    public PiiKeyProvider create(KeycloakSession ks) {
+        return this;
+    }
+
+    @Override
+    public void init(Config.Scope scope) {
+        String configured = scope.get("path");
+        path = configured == null || configured.isBlank() ? null : Path.of(configured);
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory ksf) {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+}
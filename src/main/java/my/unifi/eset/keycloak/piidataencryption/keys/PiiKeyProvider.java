@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2025 Muhammad Lukman Nasaruddin <lukman.nasaruddin@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package my.unifi.eset.keycloak.piidataencryption.keys;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.crypto.spec.SecretKeySpec;
+import org.keycloak.provider.Provider;
+
+/**
+ * Provides the encryption keys of this provider, see PiiKeySpi.
+ *
+ * @author MLukman (https://github.com/MLukman)
+ */
+public interface PiiKeyProvider extends Provider {
+
+    /**
+     * Loads the encryption keys from the source of this provider. Called at
+     * startup and then periodically by PiiKeyWatcher.
+     *
+     * @return The keys, the primary key that encrypts new values first
+     * followed by the previous keys that are only used for decryption
+     * @throws Exception if the keys cannot be loaded
+     */
+    List<SecretKeySpec> getKeys() throws Exception;
+
+    @Override
+    default void close() {
+    }
+
+    /**
+     * Converts a key in the format of KC_PII_ENCKEY into a SecretKeySpec.
+     *
+     * @param rawkey The key
+     * @return SecretKeySpec
+     */
+    static SecretKeySpec toKey(String rawkey) {
+        return new SecretKeySpec(rawkey.trim().getBytes(), "AES");
+    }
+
+    /**
+     * Converts a primary key and a comma-separated list of previous keys in
+     * the format of KC_PII_ENCKEY into a list of SecretKeySpec.
+     *
+     * @param primary The primary key
+     * @param previous The previous keys, can be null
+     * @return The keys, primary key first
+     */
+    static List<SecretKeySpec> toKeys(String primary, String previous) {
+        List<SecretKeySpec> keys = new ArrayList<>();
+        keys.add(toKey(primary));
+        if (previous != null) {
+            for (String rawkey : previous.split(",")) {
+                if (!rawkey.isBlank()) {
+                    keys.add(toKey(rawkey));
+                }
+            }
+        }
+        return keys;
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2025 Muhammad Lukman Nasaruddin <lukman.nasaruddin@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package my.unifi.eset.keycloak.piidataencryption.keys;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.spec.SecretKeySpec;
+import my.unifi.eset.keycloak.piidataencryption.utils.ConfigUtils;
+import my.unifi.eset.keycloak.piidataencryption.utils.EncryptionUtils;
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+/**
+ * Loads the encryption keys from the configured PiiKeyProvider at startup and
+ * then reloads them periodically, so that keys can be added or rotated (see
+ * KeyRotationTask) without restarting Keycloak. The keys are published to
+ * EncryptionUtils which swaps them atomically, so encryption & decryption
+ * never wait for a reload.
+ *
+ * @author MLukman (https://github.com/MLukman)
+ */
+public final class PiiKeyWatcher {
+
+    static final Logger logger = Logger.getLogger(PiiKeyWatcher.class);
+
+    /**
+     * Number of seconds between reloads, configured via
+     * KC_PII_KEY_RELOAD_INTERVAL. 0 disables the reloads.
+     */
+    static final long INTERVAL_SECONDS = ConfigUtils.getLong("KC_PII_KEY_RELOAD_INTERVAL", 60);
+
+    private static ScheduledExecutorService executor = null;
+
+    /**
+     * Loads the keys and starts watching for changes. Fails if the keys
+     * cannot be loaded, since nothing can be encrypted or decrypted without
+     * them.
+     *
+     * @param ksf KeycloakSessionFactory
+     */
+    public static synchronized void start(KeycloakSessionFactory ksf) {
+        try {
+            reload(ksf);
+        } catch (Exception ex) {
+            throw new IllegalStateException("Unable to load the encryption keys", ex);
+        }
+        if (executor != null || INTERVAL_SECONDS <= 0) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor((r) -> {
+            Thread thread = new Thread(r, "pii-key-watcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                reload(ksf);
+            } catch (Exception ex) {
+                // keep using the current keys until the source is fixed
+                logger.warnf(ex, "Event: KEYS_RELOAD_FAILED, Error: %s", ex.getMessage());
+            }
+        }, INTERVAL_SECONDS, INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    static void reload(KeycloakSessionFactory ksf) throws Exception {
+        List<SecretKeySpec> keys;
+        try (KeycloakSession session = ksf.create()) {
+            keys = session.getProvider(PiiKeyProvider.class).getKeys();
+        }
+        if (EncryptionUtils.publishKeys(keys)) {
+            logger.infof("Event: KEYS_LOADED, Key: %s, Keys: %d", EncryptionUtils.getPrimaryKeyId(), keys.size());
+        }
+    }
+
+    // Makes this class un-instantiatable
+    private PiiKeyWatcher() {
+    }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2025 Muhammad Lukman Nasaruddin <lukman.nasaruddin@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package my.unifi.eset.keycloak.piidataencryption.keys;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.Key;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+/**
+ * Reads the encryption keys from the AES secret key entries of a PKCS#12
+ * keystore, e.g. generated using keytool -genseckey -keyalg AES. Configured
+ * using the spi-pii-key-pkcs12-* options: path, password, alias of the
+ * primary key, previous-aliases (comma-separated) and key-password if the
+ * entries are not protected by the keystore password.
+ *
+ * @author MLukman (https://github.com/MLukman)
+ */
+public class Pkcs12PiiKeyProviderFactory implements PiiKeyProviderFactory, PiiKeyProvider {
+
+    public static final String ID = "pkcs12";
+
+    private Path path;
+    private char[] password;
+    private char[] keyPassword;
+    private final List<String> aliases = new ArrayList<>();
+
+    @Override
+    public List<SecretKeySpec> getKeys() throws Exception {
+        if (path == null || aliases.isEmpty()) {
+            throw new IllegalArgumentException("The spi-pii-key-pkcs12-path and spi-pii-key-pkcs12-alias options are required by the pkcs12 key provider");
+        }
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(path)) {
+            keyStore.load(in, password);
+        }
+        List<SecretKeySpec> keys = new ArrayList<>();
+        for (String alias : aliases) {
+            Key key = keyStore.getKey(alias, keyPassword);
+            if (!(key instanceof SecretKey)) {
+                throw new IllegalArgumentException("No secret key with alias " + alias + " in " + path);
+            }
+            keys.add(new SecretKeySpec(key.getEncoded(), "AES"));
+        }
+        return keys;
+    }
+
+    @Override
+    public PiiKeyProvider create(KeycloakSession ks) {
+        return this;
+    }
+
+    @Override
+    public void init(Config.Scope scope) {
+        String configured = scope.get("path");
+        path = configured == null || configured.isBlank() ? null : Path.of(configured);
+        password = scope.get("password", "").toCharArray();
+        keyPassword = scope.get("key-password", scope.get("password", "")).toCharArray();
+        aliases.clear();
+        String alias = scope.get("alias");
+        if (alias != null && !alias.isBlank()) {
+            aliases.add(alias.trim());
+            for (String previous : scope.get("previous-aliases", "").split(",")) {
+                if (!previous.isBlank()) {
+                    aliases.add(previous.trim());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory ksf) {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+}
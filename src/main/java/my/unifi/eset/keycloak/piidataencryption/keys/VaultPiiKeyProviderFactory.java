@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2025 Muhammad Lukman Nasaruddin <lukman.nasaruddin@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package my.unifi.eset.keycloak.piidataencryption.keys;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.crypto.spec.SecretKeySpec;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.vault.VaultStringSecret;
+
+/**
+ * Reads the encryption keys from the Keycloak vault. The name of the secret of
+ * the primary key is set using the spi-pii-key-vault-secret option (default
+ * pii-enckey) and those of the previous keys using the comma-separated
+ * spi-pii-key-vault-previous-secrets option. The keys are looked up without
+ * any realm, so the vault needs to be configured with the KEY_ONLY key
+ * resolver.
+ *
+ * @author MLukman (https://github.com/MLukman)
+ */
+public class VaultPiiKeyProviderFactory implements PiiKeyProviderFactory {
+
+    public static final String ID = "vault";
+
+    private final List<String> secrets = new ArrayList<>();
+
+    @Override
+    public PiiKeyProvider create(KeycloakSession ks) {
+        return () -> {
+            List<SecretKeySpec> keys = new ArrayList<>();
+            for (String secret : secrets) {
+                try (VaultStringSecret value = ks.vault().getStringSecret("${vault." + secret + "}")) {
+                    keys.add(PiiKeyProvider.toKey(value.get()
+                            .orElseThrow(() -> new IllegalArgumentException("No secret " + secret + " in the vault"))));
+                }
+            }
+            return keys;
+        };
+    }
+
+    @Override
+    public void init(Config.Scope scope) {
+        secrets.clear();
+        secrets.add(scope.get("secret", "pii-enckey"));
+        for (String previous : scope.get("previous-secrets", "").split(",")) {
+            if (!previous.isBlank()) {
+                secrets.add(previous.trim());
+            }
+        }
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory ksf) {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+}
@@ -15,11 +15,8 @@
  */
 package my.unifi.eset.keycloak.piidataencryption.ldap;
 
-import jakarta.persistence.EntityManager;
-import my.unifi.eset.keycloak.piidataencryption.utils.LogicUtils;
 import org.jboss.logging.Logger;
 import org.keycloak.component.ComponentModel;
-import org.keycloak.connections.jpa.JpaConnectionProvider;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
@@ -39,10 +36,8 @@ public class EncryptedLDAPStorageProvider extends LDAPStorageProvider {
     @Override
     protected UserModel importUserFromLDAP(KeycloakSession session, RealmModel realm, LDAPObject ldapUser, ImportType importType) {
         logger.debugf("importUserFromLDAP(KeycloakSession session, RealmModel realm, LDAPObject ldapUser, ImportType importType)");
+        // the imported user is encrypted while it is being flushed, see EntityListener
         UserModel userModel = super.importUserFromLDAP(session, realm, ldapUser, importType);
-        EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
-        LogicUtils.encryptUserEntity(session, em, LogicUtils.getUserEntity(em, userModel.getId()));
-        em.flush();
         logger.debugf("importUserFromLDAP (encrypted): " + userModel.getUsername());
         return userModel;
     }
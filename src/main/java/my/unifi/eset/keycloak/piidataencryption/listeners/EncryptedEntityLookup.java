@@ -0,0 +1,471 @@
+/*
+ * Copyright (C) 2025 Muhammad Lukman Nasaruddin <lukman.nasaruddin@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package my.unifi.eset.keycloak.piidataencryption.listeners;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import my.unifi.eset.keycloak.piidataencryption.jpa.EncryptedUserAttributeEntity;
+import my.unifi.eset.keycloak.piidataencryption.jpa.EncryptedUserEntity;
+import my.unifi.eset.keycloak.piidataencryption.utils.DecryptionFailureException;
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
+import org.hibernate.SessionEventListener;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+import org.keycloak.models.jpa.entities.UserEntity;
+
+/**
+ * Hibernate session-scoped lookup of the encrypted rows of the user entities
+ * being loaded by that session.
+ *
+ * Encrypted rows are fetched in batches using IN queries and kept for the
+ * rest of the session. All queries go through a single child session that
+ * shares the JDBC connection & transaction of the owning session, so loading
+ * entities never takes another connection from the pool, and the child session
+ * is closed together with the owning session. The same child session is used
+ * by EncryptedRowWriter to write the encrypted rows. While a prefetch window is open (see
+ * beginPrefetch()/endPrefetch()), the decryption of the user entities being
+ * hydrated is deferred until the window ends, at which point the encrypted
+ * rows of all of them are fetched together instead of one query per user.
+ *
+ * @author MLukman (https://github.com/MLukman)
+ */
+public class EncryptedEntityLookup {
+
+    /**
+     * Maximum number of IDs in a single IN query.
+     */
+    public static final int BATCH_SIZE = 500;
+
+    private static final Map<SharedSessionContractImplementor, EncryptedEntityLookup> LOOKUPS = new ConcurrentHashMap<>();
+
+    private final SharedSessionContractImplementor session;
+    private Session channel;
+    private final Map<String, EncryptedUserEntity> encryptedUsers = new HashMap<>();
+    private final Set<String> usersWithoutEncryptedRow = new HashSet<>();
+    private final Map<String, EncryptedAttributes> encryptedAttributes = new HashMap<>();
+    private final Map<String, DeferredUser> deferredUsers = new LinkedHashMap<>();
+    private final Set<String> storedEncrypted = new HashSet<>();
+    private final Map<String, Set<String>> storedEncryptedAttributes = new HashMap<>();
+    private final EncryptedRowWriter writer = new EncryptedRowWriter(this);
+    private Set<String> lastBatch = Set.of();
+    private int prefetchDepth = 0;
+    private int rawLoadDepth = 0;
+    private final Set<String> rawLoadedUsers = new HashSet<>();
+
+    /**
+     * Gets the lookup bound to the passed Hibernate session, creating it if
+     * this is the first time. The lookup is discarded when the session ends.
+     *
+     * @param session The Hibernate session
+     * @return The lookup bound to the session
+     */
+    public static EncryptedEntityLookup of(SharedSessionContractImplementor session) {
+        return LOOKUPS.computeIfAbsent(session, (s) -> {
+            EncryptedEntityLookup lookup = new EncryptedEntityLookup(s);
+            s.getEventListenerManager().addListener(new SessionEventListener() {
+                @Override
+                public void end() {
+                    LOOKUPS.remove(s);
+                    lookup.close();
+                }
+            });
+            return lookup;
+        });
+    }
+
+    /**
+     * Gets the lookup bound to the passed Hibernate session without creating
+     * it.
+     *
+     * @param session The Hibernate session
+     * @return The lookup bound to the session, or null if none
+     */
+    static EncryptedEntityLookup ifExists(SharedSessionContractImplementor session) {
+        return LOOKUPS.get(session);
+    }
+
+    EncryptedEntityLookup(SharedSessionContractImplementor session) {
+        this.session = session;
+    }
+
+    /**
+     * Opens a prefetch window. Can be nested; only the outermost endPrefetch()
+     * resolves the deferred users.
+     */
+    public void beginPrefetch() {
+        prefetchDepth++;
+    }
+
+    /**
+     * Closes a prefetch window and decrypts all user entities that were
+     * deferred while it was open.
+     */
+    public void endPrefetch() {
+        if (--prefetchDepth > 0) {
+            return;
+        }
+        prefetchDepth = 0;
+        if (deferredUsers.isEmpty()) {
+            return;
+        }
+        List<DeferredUser> users = new ArrayList<>(deferredUsers.values());
+        lastBatch = new LinkedHashSet<>(deferredUsers.keySet());
+        deferredUsers.clear();
+        fetchEncryptedUserEntities(lastBatch);
+        for (DeferredUser du : users) {
+            EncryptedUserEntity eue = encryptedUsers.get(du.entity.getId());
+            if (eue != null) {
+                try {
+                    if (EntityListener.decryptLoadedUserEntity(session, du.persister, du.entity, eue)) {
+                        setStoredEncrypted(du.entity.getId());
+                    }
+                } catch (DecryptionFailureException ex) {
+                    ex.outputToLog(EntityListener.logger);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks if a prefetch window is currently open.
+     *
+     * @return true if open
+     */
+    public boolean isPrefetching() {
+        return prefetchDepth > 0;
+    }
+
+    /**
+     * Opens a raw load window. Entities loaded while it is open keep the hash
+     * values of their rows, skipping the lookup, decryption & verification of
+     * their encrypted rows. Meant for maintenance paths that load entities
+     * only to re-encrypt them. Can be nested.
+     */
+    public void beginRawLoad() {
+        rawLoadDepth++;
+    }
+
+    /**
+     * Closes a raw load window.
+     *
+     * @return The IDs of the users whose user or attribute rows have been
+     * loaded raw since the outermost window was opened, which should be
+     * detached once done with them; empty if still inside an outer window
+     */
+    public Set<String> endRawLoad() {
+        if (--rawLoadDepth > 0) {
+            return Set.of();
+        }
+        rawLoadDepth = 0;
+        Set<String> userIds = new HashSet<>(rawLoadedUsers);
+        rawLoadedUsers.clear();
+        return userIds;
+    }
+
+    /**
+     * Checks if a raw load window is currently open.
+     *
+     * @return true if open
+     */
+    public boolean isRawLoading() {
+        return rawLoadDepth > 0;
+    }
+
+    void rawLoaded(String userId) {
+        rawLoadedUsers.add(userId);
+    }
+
+    /**
+     * Defers the decryption of a user entity being hydrated until the current
+     * prefetch window ends.
+     *
+     * @param persister The persister of the entity
+     * @param ue The UserEntity
+     */
+    void defer(EntityPersister persister, UserEntity ue) {
+        deferredUsers.put(ue.getId(), new DeferredUser(persister, ue));
+    }
+
+    /**
+     * Gets the encrypted row of a user, either from what has been fetched
+     * earlier in this session or by querying it.
+     *
+     * @param userId The user ID
+     * @return The EncryptedUserEntity or null if the user has none
+     */
+    EncryptedUserEntity getEncryptedUserEntity(String userId) {
+        if (!encryptedUsers.containsKey(userId) && !usersWithoutEncryptedRow.contains(userId)) {
+            fetchEncryptedUserEntities(List.of(userId));
+        }
+        return encryptedUsers.get(userId);
+    }
+
+    /**
+     * Gets the encrypted row of a user attribute. All encrypted attribute rows
+     * of the user are fetched together the first time any of its attributes is
+     * looked up, together with those of the other users that were loaded in
+     * the same batch, and then matched in memory.
+     *
+     * @param userId The user ID
+     * @param attributeId The ID of the UserAttributeEntity
+     * @param name The attribute name
+     * @return The EncryptedUserAttributeEntity or null if none
+     */
+    EncryptedUserAttributeEntity getEncryptedUserAttributeEntity(String userId, String attributeId, String name) {
+        if (!encryptedAttributes.containsKey(userId)) {
+            List<String> ids = new ArrayList<>();
+            ids.add(userId);
+            if (lastBatch.contains(userId)) {
+                ids.addAll(lastBatch);
+            }
+            fetchEncryptedUserAttributeEntities(ids);
+        }
+        return encryptedAttributes.get(userId).find(attributeId, name);
+    }
+
+    /**
+     * Gets the writer of the encrypted rows of the entities written by the
+     * session.
+     *
+     * @return The EncryptedRowWriter
+     */
+    EncryptedRowWriter writer() {
+        return writer;
+    }
+
+    /**
+     * Records that the stored row of a user holds hashes and has an encrypted
+     * row, i.e. it has been decrypted when loaded or encrypted when written by
+     * this session.
+     *
+     * @param userId The user ID
+     */
+    void setStoredEncrypted(String userId) {
+        storedEncrypted.add(userId);
+    }
+
+    /**
+     * Checks if the stored row of a user is known to hold hashes and to have
+     * an encrypted row, see setStoredEncrypted().
+     *
+     * @param userId The user ID
+     * @return true if known
+     */
+    boolean isStoredEncrypted(String userId) {
+        return storedEncrypted.contains(userId);
+    }
+
+    /**
+     * Records that the stored row of a user attribute holds a hash and has an
+     * encrypted row, see setStoredEncrypted().
+     *
+     * @param userId The ID of the user owning the attribute
+     * @param attributeId The ID of the UserAttributeEntity
+     */
+    void setStoredEncryptedAttribute(String userId, String attributeId) {
+        storedEncryptedAttributes.computeIfAbsent(userId, (u) -> new HashSet<>()).add(attributeId);
+    }
+
+    /**
+     * Checks if the stored row of a user attribute is known to hold a hash and
+     * to have an encrypted row, see setStoredEncryptedAttribute().
+     *
+     * @param userId The ID of the user owning the attribute
+     * @param attributeId The ID of the UserAttributeEntity
+     * @return true if known
+     */
+    boolean isStoredEncryptedAttribute(String userId, String attributeId) {
+        Set<String> ids = storedEncryptedAttributes.get(userId);
+        return ids != null && ids.contains(attributeId);
+    }
+
+    /**
+     * Forgets everything known about a particular user, e.g. after it has
+     * been encrypted or decrypted outside of the flush.
+     *
+     * @param userId The user ID
+     */
+    public void evict(String userId) {
+        evictUser(userId);
+        evictAttributes(userId);
+        storedEncrypted.remove(userId);
+        storedEncryptedAttributes.remove(userId);
+    }
+
+    /**
+     * Forgets the fetched encrypted row of a user after it has been written,
+     * keeping what is known about its stored rows.
+     *
+     * @param userId The user ID
+     */
+    void evictUser(String userId) {
+        encryptedUsers.remove(userId);
+        usersWithoutEncryptedRow.remove(userId);
+    }
+
+    /**
+     * Forgets the fetched encrypted attribute rows of a user after one of them
+     * has been written, keeping what is known about its stored rows.
+     *
+     * @param userId The user ID
+     */
+    void evictAttributes(String userId) {
+        encryptedAttributes.remove(userId);
+    }
+
+    private void fetchEncryptedUserEntities(Collection<String> userIds) {
+        List<String> ids = userIds.stream()
+                .filter((id) -> !encryptedUsers.containsKey(id) && !usersWithoutEncryptedRow.contains(id))
+                .distinct()
+                .toList();
+        if (ids.isEmpty()) {
+            return;
+        }
+        try {
+            Session channel = channel();
+            for (int i = 0; i < ids.size(); i += BATCH_SIZE) {
+                List<String> chunk = ids.subList(i, Math.min(i + BATCH_SIZE, ids.size()));
+                List<Object[]> rows = channel.createQuery("SELECT e.user.id, e FROM EncryptedUserEntity e WHERE e.user.id IN :ids", Object[].class)
+                        .setParameter("ids", chunk)
+                        .getResultList();
+                for (Object[] row : rows) {
+                    encryptedUsers.put((String) row[0], (EncryptedUserEntity) row[1]);
+                }
+                for (String id : chunk) {
+                    if (!encryptedUsers.containsKey(id)) {
+                        usersWithoutEncryptedRow.add(id);
+                    }
+                }
+            }
+        } finally {
+            clearChannel();
+        }
+        EntityListener.logger.debugf("Event: ENCRYPTED_USERS_FETCHED, Users: %d", ids.size());
+    }
+
+    private void fetchEncryptedUserAttributeEntities(Collection<String> userIds) {
+        List<String> ids = userIds.stream()
+                .filter((id) -> !encryptedAttributes.containsKey(id))
+                .distinct()
+                .toList();
+        try {
+            Session channel = channel();
+            for (int i = 0; i < ids.size(); i += BATCH_SIZE) {
+                List<String> chunk = ids.subList(i, Math.min(i + BATCH_SIZE, ids.size()));
+                for (String id : chunk) {
+                    encryptedAttributes.put(id, new EncryptedAttributes());
+                }
+                List<Object[]> rows = channel.createQuery("SELECT e.user.id, e.attribute.id, e FROM EncryptedUserAttributeEntity e WHERE e.user.id IN :ids", Object[].class)
+                        .setParameter("ids", chunk)
+                        .getResultList();
+                for (Object[] row : rows) {
+                    encryptedAttributes.get((String) row[0]).add((String) row[1], (EncryptedUserAttributeEntity) row[2]);
+                }
+            }
+        } finally {
+            clearChannel();
+        }
+        EntityListener.logger.debugf("Event: ENCRYPTED_USER_ATTRIBUTES_FETCHED, Users: %d", ids.size());
+    }
+
+    /**
+     * Gets the child session used to query the encrypted tables, opening it if
+     * this is the first query of the owning session. It shares the connection
+     * of the owning session and only flushes when asked to by
+     * EncryptedRowWriter.
+     *
+     * @return The child session
+     */
+    Session channel() {
+        if (channel == null) {
+            if (session instanceof Session owner) {
+                channel = owner.sessionWithOptions()
+                        .connection()
+                        .autoClose(false)
+                        .flushMode(FlushMode.MANUAL)
+                        .openSession();
+            } else {
+                channel = session.getSessionFactory().openSession();
+            }
+            channel.setDefaultReadOnly(true);
+        }
+        return channel;
+    }
+
+    void clearChannel() {
+        if (channel != null) {
+            channel.clear();
+        }
+    }
+
+    /**
+     * Closes the child session, if opened.
+     */
+    void close() {
+        if (channel != null && channel.isOpen()) {
+            channel.close();
+        }
+        channel = null;
+    }
+
+    /**
+     * The encrypted attribute rows of a single user, indexed by the ID of the
+     * corresponding UserAttributeEntity as well as by the attribute name.
+     */
+    private static class EncryptedAttributes {
+
+        final Map<String, EncryptedUserAttributeEntity> byAttributeId = new HashMap<>();
+        final Map<String, List<EncryptedUserAttributeEntity>> byName = new HashMap<>();
+
+        void add(String attributeId, EncryptedUserAttributeEntity euae) {
+            if (attributeId != null) {
+                byAttributeId.put(attributeId, euae);
+            }
+            byName.computeIfAbsent(euae.getName(), (n) -> new ArrayList<>()).add(euae);
+        }
+
+        EncryptedUserAttributeEntity find(String attributeId, String name) {
+            EncryptedUserAttributeEntity euae = byAttributeId.get(attributeId);
+            if (euae != null) {
+                return euae;
+            }
+            // rows not linked to the attribute row can only be matched by name when unambiguous
+            List<EncryptedUserAttributeEntity> named = byName.getOrDefault(name, List.of());
+            return named.size() == 1 ? named.get(0) : null;
+        }
+    }
+
+    private static class DeferredUser {
+
+        final EntityPersister persister;
+        final UserEntity entity;
+
+        DeferredUser(EntityPersister persister, UserEntity entity) {
+            this.persister = persister;
+            this.entity = entity;
+        }
+    }
+
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2025 Muhammad Lukman Nasaruddin <lukman.nasaruddin@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package my.unifi.eset.keycloak.piidataencryption.listeners;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import my.unifi.eset.keycloak.piidataencryption.jpa.EncryptedUserAttributeEntity;
+import my.unifi.eset.keycloak.piidataencryption.jpa.EncryptedUserEntity;
+import my.unifi.eset.keycloak.piidataencryption.utils.BlindIndex;
+import my.unifi.eset.keycloak.piidataencryption.utils.EncryptionUtils;
+import my.unifi.eset.keycloak.piidataencryption.utils.LogicUtils;
+import org.hibernate.Session;
+import org.hibernate.query.MutationQuery;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.jpa.entities.UserAttributeEntity;
+import org.keycloak.models.jpa.entities.UserEntity;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * Hibernate session-scoped writer of the encrypted rows of the user entities
+ * & user attribute entities written by that session.
+ *
+ * Right before a user or user attribute row is inserted or updated,
+ * EntityListener replaces the plain values inside the state array with their
+ * hashes and hands the plain values over to this writer. Right after the row
+ * has been written, the plain values are put back into the state array, which
+ * is also the loaded state of the entity, so the managed entity keeps holding
+ * plain values without being seen as dirty. Once the flush has completed, the
+ * encrypted rows of everything written during the flush are written through
+ * the child session of EncryptedEntityLookup, so the user tables only ever
+ * receive the hashes, in a single write. Updates of users & attributes whose
+ * stored rows are known to be encrypted only re-encrypt the fields whose value
+ * differs from the loaded state.
+ *
+ * While the EncryptionTracker of the Keycloak transaction is active, the
+ * encrypted rows are not written after every flush but accumulated and written
+ * in a single pass when the transaction commits, so a user updated several
+ * times within a transaction has its encrypted row written once.
+ *
+ * @author MLukman (https://github.com/MLukman)
+ */
+class EncryptedRowWriter {
+
+    private final EncryptedEntityLookup lookup;
+    private final Map<Object, Hashed> hashed = new IdentityHashMap<>();
+    private final Map<String, PendingUser> users = new LinkedHashMap<>();
+    private final Map<String, UserAttributeEntity> attributes = new LinkedHashMap<>();
+    private EncryptionTracker tracker;
+
+    EncryptedRowWriter(EncryptedEntityLookup lookup) {
+        this.lookup = lookup;
+    }
+
+    void setTracker(EncryptionTracker tracker) {
+        this.tracker = tracker;
+    }
+
+    /**
+     * Remembers the plain values of an entity whose state array has had some
+     * of its values replaced with hashes.
+     *
+     * @param entity The UserEntity or UserAttributeEntity
+     * @param plain A copy of the state array before the replacement
+     * @param fields The fields to re-encrypt, null for all fields or empty
+     * for none
+     * @param slots The indices of the replaced values
+     */
+    void hashed(Object entity, Object[] plain, Set<String> fields, int... slots) {
+        hashed.put(entity, new Hashed(plain, fields, slots));
+    }
+
+    /**
+     * Puts the plain values of an entity back into its state array after its
+     * row has been written, and queues the writing of its encrypted row
+     * unless none of its fields need to be re-encrypted.
+     *
+     * @param entity The UserEntity or UserAttributeEntity
+     * @param states The state array that has been written
+     * @return true if the entity had its values replaced with hashes
+     */
+    boolean written(Object entity, Object[] states) {
+        Hashed h = hashed.remove(entity);
+        if (h == null) {
+            return false;
+        }
+        for (int i : h.slots) {
+            states[i] = h.plain[i];
+        }
+        if (entity instanceof UserEntity ue && tracker != null) {
+            tracker.encrypted(ue.getId());
+        }
+        if (h.fields != null && h.fields.isEmpty()) {
+            return true;
+        }
+        if (entity instanceof UserEntity ue) {
+            PendingUser pending = users.get(ue.getId());
+            if (pending == null) {
+                users.put(ue.getId(), new PendingUser(ue, h.fields == null ? null : new LinkedHashSet<>(h.fields)));
+            } else {
+                // the entity may have been reloaded since, so the latest instance holds the values to write
+                pending.entity = ue;
+                if (h.fields == null) {
+                    pending.fields = null;
+                } else if (pending.fields != null) {
+                    pending.fields.addAll(h.fields);
+                }
+            }
+        } else if (entity instanceof UserAttributeEntity uae) {
+            attributes.put(uae.getId(), uae);
+        }
+        return true;
+    }
+
+    /**
+     * Gets the not yet written user entity holding the plain values of a user
+     * whose encrypted row is pending.
+     *
+     * @param userId The user ID
+     * @return The UserEntity or null if nothing is pending for the user
+     */
+    UserEntity getPendingUser(String userId) {
+        PendingUser pending = users.get(userId);
+        return pending != null ? pending.entity : null;
+    }
+
+    /**
+     * Gets the not yet written user attribute entity holding the plain value
+     * of an attribute whose encrypted row is pending.
+     *
+     * @param attributeId The ID of the UserAttributeEntity
+     * @return The UserAttributeEntity or null if nothing is pending for it
+     */
+    UserAttributeEntity getPendingAttribute(String attributeId) {
+        return attributes.get(attributeId);
+    }
+
+    /**
+     * Called once a flush has completed. Writes the encrypted rows of the
+     * entities written during the flush, unless the EncryptionTracker is going
+     * to write them when the transaction commits.
+     */
+    void flushed() {
+        hashed.clear();
+        if (tracker == null || !tracker.isActive()) {
+            write();
+        }
+    }
+
+    /**
+     * Discards the pending encrypted rows, i.e. when the transaction is rolled
+     * back.
+     */
+    void discard() {
+        hashed.clear();
+        users.clear();
+        attributes.clear();
+    }
+
+    /**
+     * Writes the encrypted rows of the entities written since the last call.
+     */
+    void write() {
+        if (users.isEmpty() && attributes.isEmpty()) {
+            return;
+        }
+        List<PendingUser> userList = new ArrayList<>(users.values());
+        List<UserAttributeEntity> attributeList = new ArrayList<>(attributes.values());
+        users.clear();
+        attributes.clear();
+        try {
+            Session channel = lookup.channel();
+            // users & attributes written earlier in the transaction may have been deleted since
+            Set<String> userIds = existing(channel, "UserEntity", userList.stream().map((p) -> p.entity.getId()).toList());
+            Set<String> attributeIds = existing(channel, "UserAttributeEntity", attributeList.stream().map(UserAttributeEntity::getId).toList());
+            for (PendingUser pending : userList) {
+                if (userIds.contains(pending.entity.getId())) {
+                    writeUser(channel, pending.entity, pending.fields);
+                }
+            }
+            // the blind index of an attribute covers all of its values so it is rebuilt once per user & name
+            Map<String, UserAttributeEntity> indexed = new LinkedHashMap<>();
+            for (UserAttributeEntity uae : attributeList) {
+                if (!attributeIds.contains(uae.getId())) {
+                    continue;
+                }
+                writeAttribute(channel, uae);
+                if (BlindIndex.isIndexed(uae.getName())) {
+                    indexed.putIfAbsent(uae.getUser().getId() + "/" + uae.getName(), uae);
+                }
+            }
+            for (UserAttributeEntity uae : indexed.values()) {
+                List<String> values = uae.getUser().getAttributes().stream()
+                        .filter((a) -> a.getName().equals(uae.getName()) && a.getValue() != null && !LogicUtils.isHash(a.getValue()))
+                        .map(UserAttributeEntity::getValue)
+                        .toList();
+                BlindIndex.index(channel, uae.getUser().getRealmId(), uae.getUser().getId(), Map.of(uae.getName(), values));
+            }
+            channel.flush();
+        } finally {
+            lookup.clearChannel();
+        }
+    }
+
+    private static Set<String> existing(Session channel, String entityName, List<String> ids) {
+        Set<String> found = new HashSet<>();
+        for (int i = 0; i < ids.size(); i += EncryptedEntityLookup.BATCH_SIZE) {
+            found.addAll(channel.createQuery("SELECT e.id FROM " + entityName + " e WHERE e.id IN :ids", String.class)
+                    .setParameter("ids", ids.subList(i, Math.min(i + EncryptedEntityLookup.BATCH_SIZE, ids.size())))
+                    .getResultList());
+        }
+        return found;
+    }
+
+    /**
+     * Writes the encrypted row of a user. Only the passed fields are
+     * re-encrypted if the user already has an encrypted row, otherwise a new
+     * row holding all fields is inserted.
+     */
+    private void writeUser(Session channel, UserEntity ue, Set<String> fields) {
+        String userId = ue.getId();
+        String realmId = ue.getRealmId();
+        Collection<String> written = fields == null ? BlindIndex.USER_FIELDS : fields;
+        Map<String, String> encrypted = encryptUserFields(ue, written);
+        String assignments = encrypted.keySet().stream().map((f) -> "e." + f + " = :" + f).collect(Collectors.joining(", "));
+        MutationQuery update = channel.createMutationQuery("UPDATE EncryptedUserEntity e SET " + assignments + " WHERE e.user.id = :userId")
+                .setParameter("userId", userId);
+        for (Map.Entry<String, String> field : encrypted.entrySet()) {
+            update.setParameter(field.getKey(), field.getValue());
+        }
+        if (update.executeUpdate() == 0) {
+            if (written != BlindIndex.USER_FIELDS) {
+                // there is no encrypted row to update so all fields are needed
+                written = BlindIndex.USER_FIELDS;
+                encrypted = encryptUserFields(ue, written);
+            }
+            EncryptedUserEntity eue = new EncryptedUserEntity(KeycloakModelUtils.generateId(), channel.getReference(UserEntity.class, userId));
+            eue.setUsername(encrypted.get(UserModel.USERNAME));
+            eue.setEmail(encrypted.get(UserModel.EMAIL));
+            eue.setFirstName(encrypted.get(UserModel.FIRST_NAME));
+            eue.setLastName(encrypted.get(UserModel.LAST_NAME));
+            channel.persist(eue);
+        }
+        Map<String, List<String>> indexed = new LinkedHashMap<>();
+        for (String field : written) {
+            indexed.put(field, Collections.singletonList(userFieldValue(ue, field)));
+        }
+        BlindIndex.index(channel, realmId, userId, indexed);
+        lookup.evictUser(userId);
+        lookup.setStoredEncrypted(userId);
+        EntityListener.logger.debugf("Event: USER_ENCRYPTION, Realm: %s, User: %s, Fields: %s", realmId, userId, written);
+    }
+
+    private static Map<String, String> encryptUserFields(UserEntity ue, Collection<String> fields) {
+        Map<String, String> encrypted = new LinkedHashMap<>();
+        for (String field : fields) {
+            encrypted.put(field, EncryptionUtils.encryptValue(userFieldValue(ue, field), EncryptionUtils.associatedData(ue.getId(), field), ue.getRealmId()));
+        }
+        return encrypted;
+    }
+
+    private static String userFieldValue(UserEntity ue, String field) {
+        return switch (field) {
+            case UserModel.USERNAME ->
+                ue.getUsername();
+            case UserModel.EMAIL ->
+                ue.getEmail();
+            case UserModel.FIRST_NAME ->
+                ue.getFirstName();
+            case UserModel.LAST_NAME ->
+                ue.getLastName();
+            default ->
+                throw new IllegalArgumentException(field);
+        };
+    }
+
+    private void writeAttribute(Session channel, UserAttributeEntity uae) {
+        UserEntity user = uae.getUser();
+        String encrypted = EncryptionUtils.encryptValue(uae.getValue(), EncryptionUtils.associatedData(user.getId(), uae.getName()), user.getRealmId());
+        int updated = channel.createMutationQuery("UPDATE EncryptedUserAttributeEntity e SET e.value = :value WHERE e.attribute.id = :attributeId")
+                .setParameter("value", encrypted)
+                .setParameter("attributeId", uae.getId())
+                .executeUpdate();
+        if (updated == 0) {
+            EncryptedUserAttributeEntity euae = new EncryptedUserAttributeEntity(KeycloakModelUtils.generateId(), channel.getReference(UserEntity.class, user.getId()), uae.getName());
+            euae.setAttribute(channel.getReference(UserAttributeEntity.class, uae.getId()));
+            euae.setValue(encrypted);
+            channel.persist(euae);
+        }
+        lookup.evictAttributes(user.getId());
+        lookup.setStoredEncryptedAttribute(user.getId(), uae.getId());
+        EntityListener.logger.debugf("Event: USER_ATTRIBUTE_ENCRYPTION, Realm: %s, User: %s, Attribute: %s", user.getRealmId(), user.getId(), uae.getName());
+    }
+
+    private static class Hashed {
+
+        final Object[] plain;
+        final Set<String> fields;
+        final int[] slots;
+
+        Hashed(Object[] plain, Set<String> fields, int[] slots) {
+            this.plain = plain;
+            this.fields = fields;
+            this.slots = slots;
+        }
+    }
+
+    private static class PendingUser {
+
+        UserEntity entity;
+        Set<String> fields;
+
+        PendingUser(UserEntity entity, Set<String> fields) {
+            this.entity = entity;
+            this.fields = fields;
+        }
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2025 Muhammad Lukman Nasaruddin <lukman.nasaruddin@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package my.unifi.eset.keycloak.piidataencryption.listeners;
+
+import jakarta.persistence.EntityManager;
+import java.util.HashSet;
+import java.util.Set;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+
+/**
+ * Per-transaction tracker of the users encrypted within a Keycloak
+ * transaction. It is enlisted into the prepare phase of the transaction so
+ * that the encrypted rows of all users & attributes written during the
+ * transaction are written in a single pass right before the transaction
+ * commits, instead of once per flush, and so that EventListener does not need
+ * to query the users it receives events for.
+ *
+ * @author MLukman (https://github.com/MLukman)
+ */
+public final class EncryptionTracker extends AbstractKeycloakTransaction {
+
+    private final EntityManager em;
+    private final EncryptedEntityLookup lookup;
+    private final Set<String> encryptedUsers = new HashSet<>();
+
+    private EncryptionTracker(EntityManager em) {
+        this.em = em;
+        this.lookup = EncryptedEntityLookup.of(em.unwrap(SharedSessionContractImplementor.class));
+    }
+
+    /**
+     * Enlists a tracker into the transaction of the Keycloak session, unless
+     * one has already been enlisted or there is no active transaction.
+     *
+     * @param ks KeycloakSession
+     * @param em The EntityManager whose writes are to be tracked
+     */
+    public static void enlist(KeycloakSession ks, EntityManager em) {
+        if (of(ks) != null || !ks.getTransactionManager().isActive()) {
+            return;
+        }
+        EncryptionTracker tracker = new EncryptionTracker(em);
+        ks.setAttribute(EncryptionTracker.class.getName(), tracker);
+        ks.getTransactionManager().enlistPrepare(tracker);
+        tracker.lookup.writer().setTracker(tracker);
+    }
+
+    /**
+     * Gets the tracker enlisted into the transaction of the Keycloak session.
+     *
+     * @param ks KeycloakSession
+     * @return The tracker or null if none has been enlisted
+     */
+    public static EncryptionTracker of(KeycloakSession ks) {
+        return ks.getAttribute(EncryptionTracker.class.getName(), EncryptionTracker.class);
+    }
+
+    void encrypted(String userId) {
+        encryptedUsers.add(userId);
+    }
+
+    /**
+     * Checks if a user has been encrypted within the transaction.
+     *
+     * @param userId The user ID
+     * @return true if the user row has been written with hashes within the
+     * transaction
+     */
+    public boolean isEncrypted(String userId) {
+        return encryptedUsers.contains(userId);
+    }
+
+    @Override
+    protected void commitImpl() {
+        if (!encryptedUsers.isEmpty()) {
+            // flush the pending changes while still active so their encrypted rows join the single pass below
+            em.flush();
+        }
+        lookup.writer().write();
+    }
+
+    @Override
+    protected void rollbackImpl() {
+        lookup.writer().discard();
+    }
+
+}
@@ -15,41 +15,93 @@
  */
 package my.unifi.eset.keycloak.piidataencryption.listeners;
 
+import java.util.LinkedHashSet;
+import java.util.Objects;
+import java.util.Set;
+import my.unifi.eset.keycloak.piidataencryption.utils.AttributeEncryptionPolicy;
 import my.unifi.eset.keycloak.piidataencryption.utils.EncryptionUtils;
 import my.unifi.eset.keycloak.piidataencryption.utils.LogicUtils;
-import jakarta.persistence.EntityManager;
-import java.util.HashMap;
-import java.util.Map;
 import my.unifi.eset.keycloak.piidataencryption.jpa.EncryptedUserAttributeEntity;
 import my.unifi.eset.keycloak.piidataencryption.jpa.EncryptedUserEntity;
 import my.unifi.eset.keycloak.piidataencryption.utils.DecryptionFailureException;
+import org.hibernate.SessionFactory;
+import org.hibernate.SessionFactoryObserver;
 import org.hibernate.boot.Metadata;
 import org.hibernate.boot.spi.BootstrapContext;
+import org.hibernate.engine.spi.EntityEntry;
+import org.hibernate.engine.spi.SelfDirtinessTracker;
 import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
 import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.AutoFlushEvent;
+import org.hibernate.event.spi.AutoFlushEventListener;
+import org.hibernate.event.spi.EventSource;
 import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.FlushEvent;
+import org.hibernate.event.spi.FlushEventListener;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostInsertEventListener;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.event.spi.PostUpdateEventListener;
+import org.hibernate.event.spi.PreInsertEvent;
+import org.hibernate.event.spi.PreInsertEventListener;
 import org.hibernate.event.spi.PreLoadEvent;
 import org.hibernate.event.spi.PreLoadEventListener;
+import org.hibernate.event.spi.PreUpdateEvent;
+import org.hibernate.event.spi.PreUpdateEventListener;
 import org.hibernate.integrator.spi.Integrator;
+import org.hibernate.metamodel.MappingMetamodel;
+import org.hibernate.persister.entity.EntityPersister;
 import org.hibernate.service.spi.SessionFactoryServiceRegistry;
 import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
 import org.keycloak.models.jpa.entities.UserAttributeEntity;
 import org.keycloak.models.jpa.entities.UserEntity;
+import org.keycloak.utils.KeycloakSessionUtil;
 
 /**
  * Listens to PreLoad entity event to perform decryption of UserEntity &
- * UserAttributeEntity
+ * UserAttributeEntity, and to PreInsert/PreUpdate, PostInsert/PostUpdate &
+ * flush events to perform their encryption while they are being written, see
+ * EncryptedRowWriter
  *
  * @author MLukman (https://github.com/MLukman)
  */
-public class EntityListener implements Integrator, PreLoadEventListener {
+public class EntityListener implements Integrator, PreLoadEventListener,
+        PreInsertEventListener, PreUpdateEventListener, PostInsertEventListener, PostUpdateEventListener,
+        FlushEventListener, AutoFlushEventListener {
 
     static final Logger logger = Logger.getLogger(EntityListener.class);
 
+    /**
+     * Property indices of the UserEntity & UserAttributeEntity persisters,
+     * resolved once the session factory has been fully created.
+     */
+    static volatile StateSlots userSlots;
+    static volatile StateSlots attributeSlots;
+
     @Override
     public void integrate(Metadata metadata, BootstrapContext bootstrapContext, SessionFactoryImplementor sessionFactory) {
         EventListenerRegistry eventListenerRegistry = sessionFactory.getServiceRegistry().getService(EventListenerRegistry.class);
         eventListenerRegistry.appendListeners(EventType.PRE_LOAD, this);
+        eventListenerRegistry.appendListeners(EventType.PRE_INSERT, this);
+        eventListenerRegistry.appendListeners(EventType.PRE_UPDATE, this);
+        eventListenerRegistry.appendListeners(EventType.POST_INSERT, this);
+        eventListenerRegistry.appendListeners(EventType.POST_UPDATE, this);
+        // appended after the default listeners so the encrypted rows are written once the flush has succeeded
+        eventListenerRegistry.appendListeners(EventType.FLUSH, this);
+        eventListenerRegistry.appendListeners(EventType.AUTO_FLUSH, this);
+        // the persisters are not yet available at this point so resolve the indices once they are
+        sessionFactory.addObserver(new SessionFactoryObserver() {
+            @Override
+            public void sessionFactoryCreated(SessionFactory factory) {
+                MappingMetamodel metamodel = sessionFactory.getMappingMetamodel();
+                userSlots = StateSlots.of(metamodel.getEntityDescriptor(UserEntity.class));
+                attributeSlots = StateSlots.of(metamodel.getEntityDescriptor(UserAttributeEntity.class));
+            }
+        });
     }
 
     @Override
@@ -58,6 +110,16 @@ public class EntityListener implements Integrator, PreLoadEventListener {
 
     @Override
     public void onPreLoad(PreLoadEvent ple) {
+        EncryptedEntityLookup rawLookup = EncryptedEntityLookup.ifExists(ple.getSession());
+        if (rawLookup != null && rawLookup.isRawLoading()) {
+            // keep the hash values, see EncryptedEntityLookup.beginRawLoad()
+            if (ple.getEntity() instanceof UserEntity ue) {
+                rawLookup.rawLoaded(ue.getId());
+            } else if (ple.getEntity() instanceof UserAttributeEntity uae) {
+                rawLookup.rawLoaded(((UserEntity) ple.getState()[attributeSlots(ple.getPersister()).user]).getId());
+            }
+            return;
+        }
         try {
             if (ple.getEntity() instanceof UserEntity ue) {
                 handlePreLoadEventUserEntity(ple, ue);
@@ -71,60 +133,355 @@ public class EntityListener implements Integrator, PreLoadEventListener {
     }
 
     protected void handlePreLoadEventUserEntity(PreLoadEvent ple, UserEntity ue) {
-        EntityManager em = ple.getSession().getSessionFactory().createEntityManager();
-        EncryptedUserEntity eue = LogicUtils.getEncryptedUserEntity(em, ue, false);
-        if (eue != null) {
+        StateSlots slots = userSlots(ple.getPersister());
+        if (!mayBeEncrypted(ple.getState(), slots)) {
+            return;
+        }
+        EncryptedEntityLookup lookup = EncryptedEntityLookup.of(ple.getSession());
+        UserEntity pending = lookup.writer().getPendingUser(ue.getId());
+        if (pending != null) {
+            // the encrypted row has not been written yet, see EncryptionTracker
             Object[] states = ple.getState();
-            Map<String, Integer> cols = collectColumnIndices(ple.getPersister().getEntityMetamodel().getPropertyNames());
-            if (!LogicUtils.isHash((String) states[cols.get("username")])) {
-                // skip because the entity is already decrypted
-                logger.debugf("Event: USER_ALREADY_DECRYPTED, Realm: %s, User: %s", states[cols.get("realmId")], ue.getId());
-            } else if (validateHashValueVsEncryptedValue((String) states[cols.get("username")], eue.getUsername())) {
-                logger.debugf("Event: USER_DECRYPTION, Realm: %s, User: %s", states[cols.get("realmId")], ue.getId());
-                states[cols.get("username")] = EncryptionUtils.decryptValue(eue.getUsername());
-                states[cols.get("email")] = EncryptionUtils.decryptValue(eue.getEmail());
-                states[cols.get("firstName")] = EncryptionUtils.decryptValue(eue.getFirstName());
-                states[cols.get("lastName")] = EncryptionUtils.decryptValue(eue.getLastName());
-            } else {
-                throw new DecryptionFailureException((String) states[cols.get("realmId")], ue.getId());
+            states[slots.username] = pending.getUsername();
+            states[slots.email] = pending.getEmail();
+            states[slots.firstName] = pending.getFirstName();
+            states[slots.lastName] = pending.getLastName();
+            return;
+        }
+        if (lookup.isPrefetching()) {
+            // decrypt together with the rest of the batch once the prefetch window ends
+            lookup.defer(ple.getPersister(), ue);
+            return;
+        }
+        EncryptedUserEntity eue = lookup.getEncryptedUserEntity(ue.getId());
+        if (eue != null && decryptUserEntityState(ple.getState(), slots, ue, eue)) {
+            lookup.setStoredEncrypted(ue.getId());
+        }
+    }
+
+    /**
+     * Checks if the user entity being loaded could have an encrypted row. The
+     * username column of encrypted users always holds the hash of the
+     * username, so users with any other username are never looked up in the
+     * encrypted table. This covers users of realms without encryption enabled
+     * as well as service accounts without any query.
+     *
+     * @param states The state array of the UserEntity
+     * @param slots The indices of the properties inside the state array
+     * @return true if the username is a hash
+     */
+    static boolean mayBeEncrypted(Object[] states, StateSlots slots) {
+        return states[slots.username] instanceof String username && LogicUtils.isHash(username);
+    }
+
+    /**
+     * Decrypts a user entity that has already been hydrated with the hash
+     * values, i.e. one whose decryption was deferred by EncryptedEntityLookup.
+     * Both the entity and the loaded state snapshot are updated so that the
+     * decrypted values are not seen as dirty.
+     *
+     * @param session The Hibernate session that loaded the entity
+     * @param persister The persister of the entity
+     * @param ue The UserEntity
+     * @param eue The corresponding EncryptedUserEntity
+     * @return True if the entity has been decrypted, false if it was already
+     * decrypted
+     */
+    static boolean decryptLoadedUserEntity(SharedSessionContractImplementor session, EntityPersister persister, UserEntity ue, EncryptedUserEntity eue) {
+        Object[] states = persister.getValues(ue);
+        StateSlots slots = userSlots(persister);
+        if (!decryptUserEntityState(states, slots, ue, eue)) {
+            return false;
+        }
+        EntityEntry entry = session.getPersistenceContextInternal().getEntry(ue);
+        Object[] loadedState = entry != null ? entry.getLoadedState() : null;
+        SelfDirtinessTracker tracker = ue instanceof SelfDirtinessTracker sdt ? sdt : null;
+        if (tracker != null) {
+            tracker.$$_hibernate_suspendDirtyTracking(true);
+        }
+        try {
+            for (int i : new int[]{slots.username, slots.email, slots.firstName, slots.lastName}) {
+                persister.setValue(ue, i, states[i]);
+                if (loadedState != null) {
+                    loadedState[i] = states[i];
+                }
+            }
+        } finally {
+            if (tracker != null) {
+                tracker.$$_hibernate_suspendDirtyTracking(false);
             }
         }
+        return true;
+    }
+
+    /**
+     * Replaces the hash values inside the state array of a user entity with
+     * the decrypted values.
+     *
+     * @param states The state array of the UserEntity
+     * @param slots The indices of the properties inside the state array
+     * @param ue The UserEntity
+     * @param eue The corresponding EncryptedUserEntity
+     * @return True if the state has been decrypted, false if it was already
+     * decrypted
+     */
+    static boolean decryptUserEntityState(Object[] states, StateSlots slots, UserEntity ue, EncryptedUserEntity eue) {
+        if (!LogicUtils.isHash((String) states[slots.username])) {
+            // skip because the entity is already decrypted
+            logger.debugf("Event: USER_ALREADY_DECRYPTED, Realm: %s, User: %s", states[slots.realmId], ue.getId());
+            return false;
+        }
+        // all fields are verified before any is replaced so that a failure leaves the hashes in place
+        String username = decryptUserField(states, slots, slots.username, ue, eue.getUsername(), UserModel.USERNAME);
+        String email = decryptUserField(states, slots, slots.email, ue, eue.getEmail(), UserModel.EMAIL);
+        String firstName = decryptUserField(states, slots, slots.firstName, ue, eue.getFirstName(), UserModel.FIRST_NAME);
+        String lastName = decryptUserField(states, slots, slots.lastName, ue, eue.getLastName(), UserModel.LAST_NAME);
+        logger.debugf("Event: USER_DECRYPTION, Realm: %s, User: %s", states[slots.realmId], ue.getId());
+        states[slots.username] = username;
+        states[slots.email] = email;
+        states[slots.firstName] = firstName;
+        states[slots.lastName] = lastName;
+        return true;
+    }
+
+    /**
+     * Decrypts & verifies a field of a user entity against the hash inside
+     * the state array.
+     *
+     * @return The decrypted value, or null if the field has no value
+     * @throws DecryptionFailureException if the value cannot be verified
+     */
+    private static String decryptUserField(Object[] states, StateSlots slots, int slot, UserEntity ue, String encryptedValue, String field) {
+        if (encryptedValue == null) {
+            return null;
+        }
+        String value = EncryptionUtils.decryptAndVerify((String) states[slot], encryptedValue, EncryptionUtils.associatedData(ue.getId(), field));
+        if (value == null) {
+            throw new DecryptionFailureException((String) states[slots.realmId], ue.getId());
+        }
+        return value;
     }
 
     protected void handlePreLoadEventUserAttributeEntity(PreLoadEvent ple, UserAttributeEntity uae) {
-        EntityManager em = ple.getSession().getSessionFactory().createEntityManager();
-        Map<String, Integer> cols = collectColumnIndices(ple.getPersister().getEntityMetamodel().getPropertyNames());
+        StateSlots slots = attributeSlots(ple.getPersister());
         Object[] states = ple.getState();
-        String valueColumn;
-        if (states[cols.get("value")] != null) {
-            valueColumn = "value";
-        } else if (states[cols.get("longValue")] != null) {
-            valueColumn = "longValue";
+        int valueSlot;
+        if (states[slots.value] != null) {
+            valueSlot = slots.value;
+        } else if (states[slots.longValue] != null) {
+            valueSlot = slots.longValue;
         } else {
             return; // null value = do nothing
         }
-        UserEntity user = (UserEntity) states[cols.get("user")];
-        EncryptedUserAttributeEntity euae = LogicUtils.getEncryptedUserAttributeEntity(em, user, String.valueOf(states[cols.get("name")]), false);
+        UserEntity user = (UserEntity) states[slots.user];
+        String name = (String) states[slots.name];
+        if (!LogicUtils.isHash((String) states[valueSlot])) {
+            // only attributes whose value column holds a hash can have an encrypted row
+            if (EncryptionUtils.isEncryptedValue(String.valueOf(states[slots.value]))) {
+                // if the value column is encrypted value (backward compatibility with version 1.x)
+                states[slots.value] = EncryptionUtils.decryptValue(String.valueOf(states[slots.value]));
+            }
+            return;
+        }
+        EncryptedEntityLookup lookup = EncryptedEntityLookup.of(ple.getSession());
+        UserAttributeEntity pending = lookup.writer().getPendingAttribute(uae.getId());
+        if (pending != null) {
+            // the encrypted row has not been written yet, see EncryptionTracker
+            states[valueSlot] = pending.getValue();
+            return;
+        }
+        EncryptedUserAttributeEntity euae = lookup.getEncryptedUserAttributeEntity(user.getId(), uae.getId(), name);
         if (euae != null) {
             // if record exist, decrypt it and set as value column
-            if (validateHashValueVsEncryptedValue((String) states[cols.get(valueColumn)], euae.getValue())) {
-                logger.debugf("Event: USER_ATTRIBUTE_DECRYPTION, Realm: %s, User: %s, Attribute: %s", user.getRealmId(), user.getId(), states[cols.get("name")]);
-                states[cols.get(valueColumn)] = EncryptionUtils.decryptValue(euae.getValue());
-            } else {
-                throw new DecryptionFailureException(user.getRealmId(), user.getId(), (String) states[cols.get("name")]);
+            String value = EncryptionUtils.decryptAndVerify((String) states[valueSlot], euae.getValue(), EncryptionUtils.associatedData(user.getId(), name));
+            if (value == null) {
+                throw new DecryptionFailureException(user.getRealmId(), user.getId(), name);
             }
-        } else if (EncryptionUtils.isEncryptedValue(String.valueOf(states[cols.get("value")]))) {
-            // if the value column is encrypted value (backward compatibility with version 1.x)
-            states[cols.get("value")] = EncryptionUtils.decryptValue(String.valueOf(states[cols.get("value")]));
+            logger.debugf("Event: USER_ATTRIBUTE_DECRYPTION, Realm: %s, User: %s, Attribute: %s", user.getRealmId(), user.getId(), name);
+            states[valueSlot] = value;
+            lookup.setStoredEncryptedAttribute(user.getId(), uae.getId());
+        }
+    }
+
+    @Override
+    public boolean onPreInsert(PreInsertEvent pie) {
+        hashState(pie.getSession(), pie.getPersister(), pie.getEntity(), pie.getState(), null);
+        return false;
+    }
+
+    @Override
+    public boolean onPreUpdate(PreUpdateEvent pue) {
+        hashState(pue.getSession(), pue.getPersister(), pue.getEntity(), pue.getState(), pue.getOldState());
+        return false;
+    }
+
+    @Override
+    public void onPostInsert(PostInsertEvent pie) {
+        restoreState(pie.getSession(), pie.getEntity(), pie.getState());
+    }
+
+    @Override
+    public void onPostUpdate(PostUpdateEvent pue) {
+        restoreState(pue.getSession(), pue.getEntity(), pue.getState());
+    }
+
+    @Override
+    public boolean requiresPostCommitHandling(EntityPersister persister) {
+        return false;
+    }
+
+    @Override
+    public void onFlush(FlushEvent fe) {
+        writeEncryptedRows(fe.getSession());
+    }
+
+    @Override
+    public void onAutoFlush(AutoFlushEvent afe) {
+        writeEncryptedRows(afe.getSession());
+    }
+
+    private static void writeEncryptedRows(EventSource session) {
+        EncryptedEntityLookup lookup = EncryptedEntityLookup.ifExists(session);
+        if (lookup != null) {
+            lookup.writer().flushed();
+        }
+    }
+
+    /**
+     * Replaces the plain values inside the state array of a user entity or
+     * user attribute entity that is about to be written with their hashes, so
+     * that the plain values never reach the user tables.
+     *
+     * @param session The Hibernate session writing the entity
+     * @param persister The persister of the entity
+     * @param entity The entity
+     * @param states The state array to be written
+     * @param oldStates The loaded state of the entity, null when inserting
+     */
+    protected void hashState(EventSource session, EntityPersister persister, Object entity, Object[] states, Object[] oldStates) {
+        if (entity instanceof UserEntity ue) {
+            hashUserEntityState(session, userSlots(persister), ue, states, oldStates);
+        } else if (entity instanceof UserAttributeEntity uae) {
+            hashUserAttributeEntityState(session, attributeSlots(persister), uae, states, oldStates);
+        }
+    }
+
+    /**
+     * Puts the plain values back into the state array of a user entity or user
+     * attribute entity that has just been written.
+     *
+     * @param session The Hibernate session writing the entity
+     * @param entity The entity
+     * @param states The state array that has been written
+     */
+    protected void restoreState(EventSource session, Object entity, Object[] states) {
+        EncryptedEntityLookup lookup = EncryptedEntityLookup.ifExists(session);
+        if (lookup != null && (entity instanceof UserEntity || entity instanceof UserAttributeEntity)) {
+            lookup.writer().written(entity, states);
+        }
+    }
+
+    /**
+     * Replaces the username, email, first name & last name inside the state
+     * array of a user entity of a realm with encryption enabled with their
+     * hashes. All four columns are always written, but only the fields whose
+     * value differs from the loaded state are re-encrypted if the stored row
+     * is known to be encrypted already.
+     *
+     * @param session The Hibernate session writing the entity
+     * @param slots The indices of the properties inside the state array
+     * @param ue The UserEntity
+     * @param states The state array to be written
+     * @param oldStates The loaded state of the entity, null when inserting
+     */
+    static void hashUserEntityState(SharedSessionContractImplementor session, StateSlots slots, UserEntity ue, Object[] states, Object[] oldStates) {
+        if (!(states[slots.username] instanceof String username) || LogicUtils.isHash(username)) {
+            // skip because the values are already hashed, e.g. the entity could not be decrypted
+            return;
+        }
+        KeycloakSession ks = KeycloakSessionUtil.getKeycloakSession();
+        RealmModel realm = ks != null ? ks.realms().getRealm((String) states[slots.realmId]) : null;
+        if (realm == null || !LogicUtils.isUserEncryptionEnabled(ks, realm)) {
+            return;
+        }
+        Object[] plain = states.clone();
+        String email = (String) plain[slots.email];
+        String emailHash = LogicUtils.hash(email);
+        states[slots.username] = LogicUtils.hash(username);
+        states[slots.email] = emailHash;
+        if (email != null && email.equalsIgnoreCase((String) plain[slots.emailConstraint])) {
+            // the email constraint holds the email itself when duplicate emails are not allowed
+            states[slots.emailConstraint] = emailHash;
+        }
+        states[slots.firstName] = LogicUtils.hash((String) plain[slots.firstName]);
+        states[slots.lastName] = LogicUtils.hash((String) plain[slots.lastName]);
+        EncryptedEntityLookup lookup = EncryptedEntityLookup.of(session);
+        Set<String> fields = null;
+        if (oldStates != null && lookup.isStoredEncrypted(ue.getId())) {
+            fields = new LinkedHashSet<>();
+            addIfChanged(fields, UserModel.USERNAME, plain, oldStates, slots.username);
+            addIfChanged(fields, UserModel.EMAIL, plain, oldStates, slots.email);
+            addIfChanged(fields, UserModel.FIRST_NAME, plain, oldStates, slots.firstName);
+            addIfChanged(fields, UserModel.LAST_NAME, plain, oldStates, slots.lastName);
+        }
+        lookup.writer().hashed(ue, plain, fields, slots.username, slots.email, slots.emailConstraint, slots.firstName, slots.lastName);
+    }
+
+    /**
+     * Replaces the value inside the state array of a user attribute entity
+     * that should be encrypted with its hash. The value is only re-encrypted
+     * if it differs from the loaded state or the stored row is not known to
+     * be encrypted.
+     *
+     * @param session The Hibernate session writing the entity
+     * @param slots The indices of the properties inside the state array
+     * @param uae The UserAttributeEntity
+     * @param states The state array to be written
+     * @param oldStates The loaded state of the entity, null when inserting
+     */
+    static void hashUserAttributeEntityState(SharedSessionContractImplementor session, StateSlots slots, UserAttributeEntity uae, Object[] states, Object[] oldStates) {
+        int valueSlot = states[slots.value] != null ? slots.value : slots.longValue;
+        if (!(states[valueSlot] instanceof String value) || LogicUtils.isHash(value)) {
+            return;
+        }
+        UserEntity user = (UserEntity) states[slots.user];
+        KeycloakSession ks = KeycloakSessionUtil.getKeycloakSession();
+        RealmModel realm = ks != null && user != null ? ks.realms().getRealm(user.getRealmId()) : null;
+        if (realm == null || !AttributeEncryptionPolicy.of(ks, realm).shouldEncrypt((String) states[slots.name])) {
+            return;
+        }
+        Object[] plain = states.clone();
+        // the long value hash columns keep the hashes of the plain value so that searches by value keep working
+        states[valueSlot] = LogicUtils.hash(value);
+        EncryptedEntityLookup lookup = EncryptedEntityLookup.of(session);
+        Set<String> fields = null;
+        if (oldStates != null && lookup.isStoredEncryptedAttribute(user.getId(), uae.getId())) {
+            Object oldValue = oldStates[slots.value] != null ? oldStates[slots.value] : oldStates[slots.longValue];
+            fields = value.equals(oldValue) ? Set.of() : null;
+        }
+        lookup.writer().hashed(uae, plain, fields, valueSlot);
+    }
+
+    private static void addIfChanged(Set<String> fields, String field, Object[] states, Object[] oldStates, int slot) {
+        if (!Objects.equals(states[slot], oldStates[slot])) {
+            fields.add(field);
+        }
+    }
+
+    private static StateSlots userSlots(EntityPersister persister) {
+        StateSlots slots = userSlots;
+        if (slots == null || slots.persister != persister) {
+            userSlots = slots = StateSlots.of(persister);
         }
+        return slots;
     }
 
-    protected static Map<String, Integer> collectColumnIndices(String[] columnNames) {
-        Map<String, Integer> cols = new HashMap<>();
-        for (int i = 0; i < columnNames.length; i++) {
-            cols.put(columnNames[i], i);
+    private static StateSlots attributeSlots(EntityPersister persister) {
+        StateSlots slots = attributeSlots;
+        if (slots == null || slots.persister != persister) {
+            attributeSlots = slots = StateSlots.of(persister);
         }
-        return cols;
+        return slots;
     }
 
     /**
@@ -15,10 +15,9 @@
  */
 package my.unifi.eset.keycloak.piidataencryption.listeners;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import my.unifi.eset.keycloak.piidataencryption.utils.LogicUtils;
 import jakarta.persistence.EntityManager;
+import java.util.List;
 import org.jboss.logging.Logger;
 import org.keycloak.connections.jpa.JpaConnectionProvider;
 import org.keycloak.events.Event;
@@ -27,9 +26,7 @@ import org.keycloak.events.EventType;
 import org.keycloak.events.admin.AdminEvent;
 import org.keycloak.events.admin.ResourceType;
 import org.keycloak.models.KeycloakSession;
-import org.keycloak.models.UserModel;
 import org.keycloak.models.jpa.entities.UserAttributeEntity;
-import org.keycloak.models.jpa.entities.UserEntity;
 
 /**
  * Listens to REGISTER & UPDATE_PROFILE user events as well as CREATE & UPDATE
@@ -55,13 +52,12 @@ public class EventListener implements EventListenerProvider {
     @Override
     public void onEvent(Event event) {
         if (event.getType() == EventType.REGISTER || event.getType() == EventType.UPDATE_PROFILE) {
-            UserModel user = session.users().getUserById(session.realms().getRealm(event.getRealmId()), event.getUserId());
-            encryptUserWithId(event.getRealmId(), user.getId());
+            encryptUserWithId(event.getRealmId(), event.getUserId());
         }
     }
 
     /**
-     * Intercept UPDATE admin event on USER resource
+     * Intercept CREATE & UPDATE admin events on USER resource
      *
      * @param event
      * @param bln
@@ -72,16 +68,7 @@ public class EventListener implements EventListenerProvider {
             return;
         }
         String userId = switch (event.getOperationType()) {
-            case CREATE -> {
-                try {
-                    String username = (new ObjectMapper()).readTree(event.getRepresentation()).get("username").asText();
-                    UserModel user = session.users().getUserByUsername(session.realms().getRealm(event.getRealmId()), username);
-                    yield (user != null ? user.getId() : null);
-                } catch (JsonProcessingException ex) {
-                    yield null;
-                }
-            }
-            case UPDATE ->
+            case CREATE, UPDATE ->
                 event.getResourcePath().split("/")[1];
             default ->
                 null;
@@ -95,18 +82,41 @@ public class EventListener implements EventListenerProvider {
     public void close() {
     }
 
+    /**
+     * Encrypts a user unless it has already been encrypted while it was being
+     * written, see EntityListener. Users already recorded by the
+     * EncryptionTracker of the transaction are skipped without any query.
+     * Otherwise, querying the stored username flushes any pending changes, so
+     * a stored username that is still not a hash means the user has been
+     * written without going through EntityListener.
+     *
+     * @param realmId The realm ID
+     * @param userId The user ID
+     */
     private void encryptUserWithId(String realmId, String userId) {
         if (LogicUtils.isUserEncryptionEnabled(session, realmId)) {
-            logger.debugf("Event: USER_ENCRYPTION, Realm: %s, User: %s", realmId, userId);
+            EncryptionTracker tracker = EncryptionTracker.of(session);
+            if (tracker != null && tracker.isEncrypted(userId)) {
+                logger.debugf("Event: USER_ENCRYPTION_SKIPPED_ALREADY_ENCRYPTED, Realm: %s, User: %s", realmId, userId);
+                return;
+            }
             EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
-            UserEntity userEntity = LogicUtils.getUserEntity(em, userId);
-            if (userEntity != null) {
+            List<String> stored = em.createQuery("SELECT u.username FROM UserEntity u WHERE u.id = :id", String.class)
+                    .setParameter("id", userId)
+                    .getResultList();
+            if (!stored.isEmpty() && LogicUtils.isHash(stored.get(0))) {
+                logger.debugf("Event: USER_ENCRYPTION_SKIPPED_ALREADY_ENCRYPTED, Realm: %s, User: %s", realmId, userId);
+                return;
+            }
+            logger.debugf("Event: USER_ENCRYPTION, Realm: %s, User: %s", realmId, userId);
+            // the values that are already encrypted are skipped anyway so there is no need to decrypt them
+            boolean found = LogicUtils.withRawUserEntity(em, userId, (userEntity) -> {
                 LogicUtils.encryptUserEntity(session, em, userEntity);
                 for (UserAttributeEntity uae : userEntity.getAttributes()) {
                     LogicUtils.encryptUserAttributeEntity(session, em, uae);
                 }
-                em.flush();
-            } else {
+            });
+            if (!found) {
                 logger.debugf("Event: USER_ENCRYPTION_SKIPPED_NOT_FOUND, Realm: %s, User: %s", realmId, userId);
             }
         } else {
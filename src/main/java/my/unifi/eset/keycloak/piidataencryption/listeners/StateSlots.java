@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2025 Muhammad Lukman Nasaruddin <lukman.nasaruddin@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package my.unifi.eset.keycloak.piidataencryption.listeners;
+
+import org.hibernate.persister.entity.EntityPersister;
+
+/**
+ * Immutable indices of the properties of UserEntity & UserAttributeEntity
+ * inside the state arrays of their persister. Indices of properties that the
+ * entity does not have are -1.
+ *
+ * @author MLukman (https://github.com/MLukman)
+ */
+final class StateSlots {
+
+    final EntityPersister persister;
+
+    // UserEntity
+    final int username;
+    final int email;
+    final int emailConstraint;
+    final int firstName;
+    final int lastName;
+    final int realmId;
+
+    // UserAttributeEntity
+    final int value;
+    final int longValue;
+    final int user;
+    final int name;
+
+    private StateSlots(EntityPersister persister) {
+        String[] propertyNames = persister.getPropertyNames();
+        this.persister = persister;
+        this.username = indexOf(propertyNames, "username");
+        this.email = indexOf(propertyNames, "email");
+        this.emailConstraint = indexOf(propertyNames, "emailConstraint");
+        this.firstName = indexOf(propertyNames, "firstName");
+        this.lastName = indexOf(propertyNames, "lastName");
+        this.realmId = indexOf(propertyNames, "realmId");
+        this.value = indexOf(propertyNames, "value");
+        this.longValue = indexOf(propertyNames, "longValue");
+        this.user = indexOf(propertyNames, "user");
+        this.name = indexOf(propertyNames, "name");
+    }
+
+    /**
+     * Resolves the property indices of the passed persister.
+     *
+     * @param persister The EntityPersister
+     * @return The resolved indices
+     */
+    static StateSlots of(EntityPersister persister) {
+        return new StateSlots(persister);
+    }
+
+    private static int indexOf(String[] propertyNames, String propertyName) {
+        for (int i = 0; i < propertyNames.length; i++) {
+            if (propertyNames[i].equals(propertyName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2025 Muhammad Lukman Nasaruddin <lukman.nasaruddin@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package my.unifi.eset.keycloak.piidataencryption.utils;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import my.unifi.eset.keycloak.piidataencryption.admin.PiiDataEncryptionValidatorProvider;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.representations.userprofile.config.UPAttribute;
+import org.keycloak.representations.userprofile.config.UPConfig;
+import org.keycloak.userprofile.DeclarativeUserProfileProvider;
+import org.keycloak.userprofile.UserProfileProvider;
+
+/**
+ * Immutable snapshot of which user attributes of a realm must be encrypted,
+ * compiled from the realm attribute users.encrypt and the user profile
+ * configuration of the realm.
+ *
+ * Compiled policies are cached per realm until the realm is updated, removed
+ * or cached again by the realm cache (which happens on every node after any
+ * change to the realm or its components, including the user profile
+ * configuration), so that getting the policy of a realm is a map lookup.
+ *
+ * @author MLukman (https://github.com/MLukman)
+ */
+public final class AttributeEncryptionPolicy {
+
+    static final String ATTRIBUTE_PREFIX = "pii-";
+
+    private static final Map<String, AttributeEncryptionPolicy> POLICIES = new ConcurrentHashMap<>();
+    private static final AtomicLong INVALIDATIONS = new AtomicLong();
+
+    private final boolean enabled;
+    private final Set<String> attributeNames;
+
+    private AttributeEncryptionPolicy(boolean enabled, Set<String> attributeNames) {
+        this.enabled = enabled;
+        this.attributeNames = Set.copyOf(attributeNames);
+    }
+
+    /**
+     * Gets the policy of a realm, compiling it if it has not been compiled
+     * since the realm was last invalidated.
+     *
+     * @param ks KeycloakSession
+     * @param realm RealmModel
+     * @return The policy
+     */
+    public static AttributeEncryptionPolicy of(KeycloakSession ks, RealmModel realm) {
+        AttributeEncryptionPolicy policy = POLICIES.get(realm.getId());
+        if (policy == null) {
+            long invalidations = INVALIDATIONS.get();
+            policy = compile(ks, realm);
+            // a policy compiled while the realm was being invalidated may already be outdated
+            if (INVALIDATIONS.get() == invalidations) {
+                POLICIES.put(realm.getId(), policy);
+            }
+        }
+        return policy;
+    }
+
+    /**
+     * Discards the compiled policy of a realm.
+     *
+     * @param realmId The ID of the realm
+     */
+    public static void invalidate(String realmId) {
+        INVALIDATIONS.incrementAndGet();
+        POLICIES.remove(realmId);
+    }
+
+    /**
+     * Checks if user encryption is enabled for the realm.
+     *
+     * @return true if enabled
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Gets the names of the attributes that have the pii-data-encryption
+     * validator enabled. Attributes with the pii- prefix are not included.
+     *
+     * @return Attribute names
+     */
+    public Set<String> getAttributeNames() {
+        return attributeNames;
+    }
+
+    /**
+     * Checks if a particular user attribute should be encrypted or not
+     *
+     * @param attributeName The name of the user attribute
+     * @return true if should encrypted, false if not
+     */
+    public boolean shouldEncrypt(String attributeName) {
+        return enabled && attributeName != null
+                && (attributeName.startsWith(ATTRIBUTE_PREFIX) || attributeNames.contains(attributeName));
+    }
+
+    private static AttributeEncryptionPolicy compile(KeycloakSession ks, RealmModel realm) {
+        if (!LogicUtils.isUserEncryptionEnabled(ks, realm)) {
+            return new AttributeEncryptionPolicy(false, Set.of());
+        }
+        Set<String> names = new HashSet<>();
+        UserProfileProvider upp = ks.getProvider(UserProfileProvider.class);
+        if (upp instanceof DeclarativeUserProfileProvider dup) {
+            // the provider reads the configuration of the realm in the context
+            KeycloakContext context = ks.getContext();
+            RealmModel contextRealm = context.getRealm();
+            try {
+                context.setRealm(realm);
+                UPConfig config = dup.getConfiguration();
+                for (UPAttribute upa : config.getAttributes()) {
+                    Map<String, Object> validator = upa.getValidations() != null ? upa.getValidations().get(PiiDataEncryptionValidatorProvider.ID) : null;
+                    if (validator != null && Boolean.parseBoolean(String.valueOf(validator.getOrDefault("enable", false)))) {
+                        names.add(upa.getName());
+                    }
+                }
+            } catch (Exception ex) {
+                LogicUtils.logger.warnf(ex, "Unable to read user profile configuration of realm %s", realm.getId());
+            } finally {
+                context.setRealm(contextRealm);
+            }
+        }
+        LogicUtils.logger.debugf("Event: ATTRIBUTE_POLICY_COMPILED, Realm: %s, Attributes: %s", realm.getId(), names);
+        return new AttributeEncryptionPolicy(true, names);
+    }
+
+}
@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2025 Muhammad Lukman Nasaruddin <lukman.nasaruddin@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package my.unifi.eset.keycloak.piidataencryption.utils;
+
+import jakarta.persistence.EntityManager;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import my.unifi.eset.keycloak.piidataencryption.jpa.EncryptedUserAttributeEntity;
+import my.unifi.eset.keycloak.piidataencryption.jpa.EncryptedUserEntity;
+import my.unifi.eset.keycloak.piidataencryption.jpa.UserBlindIndexEntity;
+import my.unifi.eset.keycloak.piidataencryption.listeners.EncryptedEntityLookup;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.jpa.entities.UserAttributeEntity;
+import org.keycloak.models.jpa.entities.UserEntity;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.storage.jpa.JpaHashUtils;
+
+/**
+ * Encrypts/decrypts chunks of users for the realm-wide migration by writing
+ * the hash columns and the encrypted rows using JDBC batches instead of one
+ * JPQL statement or persist() per row.
+ *
+ * The entities are still loaded through the EntityManager so that they are
+ * decrypted by EntityListener as usual, but the rows are written directly.
+ * The entities of the chunk are then detached since their state no longer
+ * matches the database. Table & column names are taken from the Hibernate
+ * persisters of the entities.
+ *
+ * @author MLukman (https://github.com/MLukman)
+ */
+final class BatchedMigration {
+
+    /**
+     * Maximum number of statements per JDBC batch, configured via
+     * KC_PII_JDBC_BATCH_SIZE.
+     */
+    static final int BATCH_SIZE = Math.max(1, ConfigUtils.getInt("KC_PII_JDBC_BATCH_SIZE", 100));
+
+    /**
+     * Encrypts the passed user entities together with their attributes.
+     *
+     * @param ks KeycloakSession
+     * @param em EntityManager
+     * @param realm The RealmModel the users belong to
+     * @param users The UserEntity list, with attributes already loaded
+     */
+    static void encryptUserEntities(KeycloakSession ks, EntityManager em, RealmModel realm, List<UserEntity> users) {
+        if (users.isEmpty() || !LogicUtils.isUserEncryptionEnabled(ks, realm)) {
+            return;
+        }
+        AttributeEncryptionPolicy policy = AttributeEncryptionPolicy.of(ks, realm);
+        Tables t = new Tables(em);
+        Set<String> ids = new HashSet<>();
+        users.forEach((u) -> ids.add(u.getId()));
+        Map<String, EncryptedUserEntity> existingUsers = new HashMap<>();
+        List<EncryptedUserAttributeEntity> encryptedAttributes = new ArrayList<>();
+        fetchEncryptedRows(em, ids, existingUsers, encryptedAttributes);
+        // existing attribute rows are matched by attribute ID, or by name for rows not linked to any attribute
+        Map<String, EncryptedUserAttributeEntity> existingAttributes = new HashMap<>();
+        for (EncryptedUserAttributeEntity euae : encryptedAttributes) {
+            existingAttributes.put(euae.getAttribute() != null ? euae.getAttribute().getId() : euae.getUser().getId() + "/" + euae.getName(), euae);
+        }
+
+        String updateUser = "UPDATE " + t.user + " SET " + t.userColumns("username", "email", "emailConstraint", "firstName", "lastName") + " WHERE " + t.userId + " = ?";
+        String insertEncryptedUser = "INSERT INTO " + t.encryptedUser + " (" + t.encryptedUserId + ", " + t.encryptedUserUser + ", " + t.encryptedUserColumnList() + ") VALUES (?, ?, ?, ?, ?, ?)";
+        String updateEncryptedUser = "UPDATE " + t.encryptedUser + " SET " + t.encryptedUserColumns() + " WHERE " + t.encryptedUserId + " = ?";
+        String insertEncryptedAttribute = "INSERT INTO " + t.encryptedAttribute + " (" + t.encryptedAttributeId + ", " + t.encryptedAttributeUser + ", " + t.encryptedAttributeAttribute + ", " + t.encryptedAttributeName + ", " + t.encryptedAttributeValue + ") VALUES (?, ?, ?, ?, ?)";
+        String updateEncryptedAttribute = "UPDATE " + t.encryptedAttribute + " SET " + t.encryptedAttributeAttribute + " = ?, " + t.encryptedAttributeValue + " = ? WHERE " + t.encryptedAttributeId + " = ?";
+        String deleteBlindIndex = "DELETE FROM " + t.blindIndex + " WHERE " + t.blindIndexUser + " = ? AND " + t.blindIndexField + " = ?";
+        String insertBlindIndex = "INSERT INTO " + t.blindIndex + " (" + t.blindIndexId + ", " + t.blindIndexUser + ", " + t.blindIndexRealm + ", " + t.blindIndexField + ", " + t.blindIndexToken + ") VALUES (?, ?, ?, ?, ?)";
+
+        JdbcBatches batches = new JdbcBatches();
+        boolean emailConstraintIsEmail = !realm.isDuplicateEmailsAllowed();
+        for (UserEntity user : users) {
+            Map<String, List<String>> indexed = new LinkedHashMap<>();
+            if (!LogicUtils.isHash(user.getUsername())) {
+                String emailHash = LogicUtils.hash(user.getEmail());
+                String[] encrypted = {
+                    EncryptionUtils.encryptValue(user.getUsername(), EncryptionUtils.associatedData(user.getId(), UserModel.USERNAME), realm.getId()),
+                    EncryptionUtils.encryptValue(user.getEmail(), EncryptionUtils.associatedData(user.getId(), UserModel.EMAIL), realm.getId()),
+                    EncryptionUtils.encryptValue(user.getFirstName(), EncryptionUtils.associatedData(user.getId(), UserModel.FIRST_NAME), realm.getId()),
+                    EncryptionUtils.encryptValue(user.getLastName(), EncryptionUtils.associatedData(user.getId(), UserModel.LAST_NAME), realm.getId())};
+                EncryptedUserEntity eue = existingUsers.get(user.getId());
+                if (eue != null) {
+                    batches.add(updateEncryptedUser, encrypted[0], encrypted[1], encrypted[2], encrypted[3], eue.getId());
+                } else {
+                    batches.add(insertEncryptedUser, KeycloakModelUtils.generateId(), user.getId(), encrypted[0], encrypted[1], encrypted[2], encrypted[3]);
+                }
+                batches.add(updateUser, LogicUtils.hash(user.getUsername()), emailHash,
+                        emailConstraintIsEmail ? emailHash : user.getEmailConstraint(),
+                        LogicUtils.hash(user.getFirstName()), LogicUtils.hash(user.getLastName()), user.getId());
+                LogicUtils.logger.debugf("Event: USER_ENCRYPTION, Realm: %s, User: %s", realm.getId(), user.getId());
+                if (BlindIndex.isEnabled()) {
+                    indexed.putAll(BlindIndex.userFieldValues(user));
+                }
+            }
+            for (UserAttributeEntity uae : user.getAttributes()) {
+                String value = uae.getValue();
+                if (value == null || !policy.shouldEncrypt(uae.getName()) || LogicUtils.isHash(value)) {
+                    continue;
+                }
+                String encrypted = EncryptionUtils.encryptValue(value, EncryptionUtils.associatedData(user.getId(), uae.getName()), realm.getId());
+                EncryptedUserAttributeEntity euae = existingAttributes.remove(uae.getId());
+                if (euae == null) {
+                    euae = existingAttributes.remove(user.getId() + "/" + uae.getName());
+                }
+                if (euae != null) {
+                    batches.add(updateEncryptedAttribute, uae.getId(), encrypted, euae.getId());
+                } else {
+                    batches.add(insertEncryptedAttribute, KeycloakModelUtils.generateId(), user.getId(), uae.getId(), uae.getName(), encrypted);
+                }
+                addAttributeUpdate(batches, t, uae.getId(), LogicUtils.hash(value), value);
+                if (BlindIndex.isIndexed(uae.getName())) {
+                    indexed.computeIfAbsent(uae.getName(), (n) -> new ArrayList<>()).add(value);
+                }
+            }
+            for (Map.Entry<String, List<String>> field : indexed.entrySet()) {
+                batches.add(deleteBlindIndex, user.getId(), field.getKey());
+                for (String token : BlindIndex.tokenHashes(field.getKey(), field.getValue())) {
+                    batches.add(insertBlindIndex, KeycloakModelUtils.generateId(), user.getId(), realm.getId(), field.getKey(), token);
+                }
+            }
+        }
+        execute(em, batches, ids);
+    }
+
+    /**
+     * Decrypts the users with the passed IDs together with their attributes.
+     *
+     * @param em EntityManager
+     * @param realm The RealmModel the users belong to
+     * @param userIds The user IDs
+     */
+    static void decryptUserEntities(EntityManager em, RealmModel realm, List<String> userIds) {
+        Tables t = new Tables(em);
+        Set<String> ids = new HashSet<>(userIds);
+        Map<String, EncryptedUserEntity> encryptedUsers = new HashMap<>();
+        List<EncryptedUserAttributeEntity> encryptedAttributes = new ArrayList<>();
+        fetchEncryptedRows(em, ids, encryptedUsers, encryptedAttributes);
+
+        String updateUser = "UPDATE " + t.user + " SET " + t.userColumns("username", "email", "emailConstraint", "firstName", "lastName") + " WHERE " + t.userId + " = ?";
+        String deleteEncryptedUser = "DELETE FROM " + t.encryptedUser + " WHERE " + t.encryptedUserId + " = ?";
+        String deleteEncryptedAttribute = "DELETE FROM " + t.encryptedAttribute + " WHERE " + t.encryptedAttributeId + " = ?";
+        String deleteBlindIndex = "DELETE FROM " + t.blindIndex + " WHERE " + t.blindIndexUser + " = ?";
+
+        JdbcBatches batches = new JdbcBatches();
+        boolean emailConstraintIsEmail = !realm.isDuplicateEmailsAllowed();
+        for (EncryptedUserEntity eue : encryptedUsers.values()) {
+            UserEntity user = eue.getUser();
+            String username = EncryptionUtils.decryptValue(eue.getUsername(), EncryptionUtils.associatedData(user.getId(), UserModel.USERNAME));
+            if (!user.getUsername().equalsIgnoreCase(username)) {
+                new DecryptionFailureException(realm.getId(), user.getId()).outputToLog(LogicUtils.logger);
+                continue;
+            }
+            String email = EncryptionUtils.decryptValue(eue.getEmail(), EncryptionUtils.associatedData(user.getId(), UserModel.EMAIL));
+            batches.add(updateUser, username, email, emailConstraintIsEmail ? email : user.getEmailConstraint(),
+                    EncryptionUtils.decryptValue(eue.getFirstName(), EncryptionUtils.associatedData(user.getId(), UserModel.FIRST_NAME)),
+                    EncryptionUtils.decryptValue(eue.getLastName(), EncryptionUtils.associatedData(user.getId(), UserModel.LAST_NAME)), user.getId());
+            batches.add(deleteEncryptedUser, eue.getId());
+            LogicUtils.logger.debugf("Event: USER_DECRYPTION, Realm: %s, User: %s", realm.getId(), user.getId());
+        }
+        for (EncryptedUserAttributeEntity euae : encryptedAttributes) {
+            UserAttributeEntity uae = euae.getAttribute();
+            String value = EncryptionUtils.decryptValue(euae.getValue(), EncryptionUtils.associatedData(euae.getUser().getId(), euae.getName()));
+            if (uae == null || !uae.getValue().equalsIgnoreCase(value)) {
+                new DecryptionFailureException(realm.getId(), euae.getUser().getId(), euae.getName()).outputToLog(LogicUtils.logger);
+                continue;
+            }
+            addAttributeUpdate(batches, t, uae.getId(), value, value);
+            batches.add(deleteEncryptedAttribute, euae.getId());
+        }
+        ids.forEach((id) -> batches.add(deleteBlindIndex, id));
+        execute(em, batches, ids);
+    }
+
+    /**
+     * Loads the encrypted rows of the passed users, together with the
+     * entities they refer to.
+     */
+    private static void fetchEncryptedRows(EntityManager em, Set<String> ids, Map<String, EncryptedUserEntity> users, List<EncryptedUserAttributeEntity> attributes) {
+        LogicUtils.prefetched(em, () -> em.createQuery("SELECT e FROM EncryptedUserEntity e JOIN FETCH e.user WHERE e.user.id IN :ids", EncryptedUserEntity.class)
+                .setParameter("ids", ids)
+                .getResultList())
+                .forEach((eue) -> users.put(eue.getUser().getId(), eue));
+        attributes.addAll(LogicUtils.prefetched(em, () -> em.createQuery("SELECT e FROM EncryptedUserAttributeEntity e JOIN FETCH e.user LEFT JOIN FETCH e.attribute WHERE e.user.id IN :ids", EncryptedUserAttributeEntity.class)
+                .setParameter("ids", ids)
+                .getResultList()));
+    }
+
+    /**
+     * Adds the update of a user attribute row, using the long value columns
+     * for values longer than 255 characters the same way as JpaUserProvider.
+     */
+    private static void addAttributeUpdate(JdbcBatches batches, Tables t, String attributeId, String stored, String original) {
+        if (original.length() > 255) {
+            batches.add("UPDATE " + t.attribute + " SET " + t.attributeValue + " = NULL, " + t.attributeLongValue + " = ?, " + t.attributeLongValueHash + " = ?, " + t.attributeLongValueHashLowerCase + " = ? WHERE " + t.attributeId + " = ?",
+                    stored, JpaHashUtils.hashForAttributeValue(original), JpaHashUtils.hashForAttributeValueLowerCase(original), attributeId);
+        } else {
+            batches.add("UPDATE " + t.attribute + " SET " + t.attributeValue + " = ?, " + t.attributeLongValue + " = NULL, " + t.attributeLongValueHash + " = NULL, " + t.attributeLongValueHashLowerCase + " = NULL WHERE " + t.attributeId + " = ?",
+                    stored, attributeId);
+        }
+    }
+
+    /**
+     * Flushes pending changes of the EntityManager, executes the batches on
+     * its connection, then forgets everything loaded for the passed users.
+     */
+    private static void execute(EntityManager em, JdbcBatches batches, Set<String> userIds) {
+        em.flush();
+        em.unwrap(Session.class).doWork(batches::execute);
+        LogicUtils.detachUserEntities(em, userIds);
+        EncryptedEntityLookup lookup = EncryptedEntityLookup.of(em.unwrap(SharedSessionContractImplementor.class));
+        userIds.forEach(lookup::evict);
+    }
+
+    /**
+     * Table & column names of the entities, resolved from their persisters.
+     */
+    private static class Tables {
+
+        final AbstractEntityPersister userPersister;
+        final String user;
+        final String userId;
+        final String attribute;
+        final String attributeId;
+        final String attributeValue;
+        final String attributeLongValue;
+        final String attributeLongValueHash;
+        final String attributeLongValueHashLowerCase;
+        final AbstractEntityPersister encryptedUserPersister;
+        final String encryptedUser;
+        final String encryptedUserId;
+        final String encryptedUserUser;
+        final String encryptedAttribute;
+        final String encryptedAttributeId;
+        final String encryptedAttributeUser;
+        final String encryptedAttributeAttribute;
+        final String encryptedAttributeName;
+        final String encryptedAttributeValue;
+        final String blindIndex;
+        final String blindIndexId;
+        final String blindIndexUser;
+        final String blindIndexRealm;
+        final String blindIndexField;
+        final String blindIndexToken;
+
+        Tables(EntityManager em) {
+            SharedSessionContractImplementor session = em.unwrap(SharedSessionContractImplementor.class);
+            userPersister = persister(session, UserEntity.class);
+            user = userPersister.getRootTableName();
+            userId = userPersister.getIdentifierColumnNames()[0];
+            AbstractEntityPersister attributePersister = persister(session, UserAttributeEntity.class);
+            attribute = attributePersister.getRootTableName();
+            attributeId = attributePersister.getIdentifierColumnNames()[0];
+            attributeValue = column(attributePersister, "value");
+            attributeLongValue = column(attributePersister, "longValue");
+            attributeLongValueHash = column(attributePersister, "longValueHash");
+            attributeLongValueHashLowerCase = column(attributePersister, "longValueHashLowerCase");
+            encryptedUserPersister = persister(session, EncryptedUserEntity.class);
+            encryptedUser = encryptedUserPersister.getRootTableName();
+            encryptedUserId = encryptedUserPersister.getIdentifierColumnNames()[0];
+            encryptedUserUser = column(encryptedUserPersister, "user");
+            AbstractEntityPersister encryptedAttributePersister = persister(session, EncryptedUserAttributeEntity.class);
+            encryptedAttribute = encryptedAttributePersister.getRootTableName();
+            encryptedAttributeId = encryptedAttributePersister.getIdentifierColumnNames()[0];
+            encryptedAttributeUser = column(encryptedAttributePersister, "user");
+            encryptedAttributeAttribute = column(encryptedAttributePersister, "attribute");
+            encryptedAttributeName = column(encryptedAttributePersister, "name");
+            encryptedAttributeValue = column(encryptedAttributePersister, "value");
+            AbstractEntityPersister blindIndexPersister = persister(session, UserBlindIndexEntity.class);
+            blindIndex = blindIndexPersister.getRootTableName();
+            blindIndexId = blindIndexPersister.getIdentifierColumnNames()[0];
+            blindIndexUser = column(blindIndexPersister, "userId");
+            blindIndexRealm = column(blindIndexPersister, "realmId");
+            blindIndexField = column(blindIndexPersister, "field");
+            blindIndexToken = column(blindIndexPersister, "token");
+        }
+
+        String userColumns(String... properties) {
+            List<String> assignments = new ArrayList<>();
+            for (String property : properties) {
+                assignments.add(column(userPersister, property) + " = ?");
+            }
+            return String.join(", ", assignments);
+        }
+
+        String encryptedUserColumnList() {
+            return String.join(", ", column(encryptedUserPersister, "username"), column(encryptedUserPersister, "email"),
+                    column(encryptedUserPersister, "firstName"), column(encryptedUserPersister, "lastName"));
+        }
+
+        String encryptedUserColumns() {
+            return String.join(" = ?, ", column(encryptedUserPersister, "username"), column(encryptedUserPersister, "email"),
+                    column(encryptedUserPersister, "firstName"), column(encryptedUserPersister, "lastName")) + " = ?";
+        }
+
+        private static AbstractEntityPersister persister(SharedSessionContractImplementor session, Class<?> entityClass) {
+            return (AbstractEntityPersister) session.getFactory().getMappingMetamodel().getEntityDescriptor(entityClass);
+        }
+
+        private static String column(AbstractEntityPersister persister, String property) {
+            return persister.getPropertyColumnNames(property)[0];
+        }
+    }
+
+    /**
+     * Statements grouped by SQL into JDBC batches of BATCH_SIZE. Remaining
+     * statements are executed in the order their SQL was first added.
+     */
+    private static class JdbcBatches {
+
+        private final Map<String, List<Object[]>> statements = new LinkedHashMap<>();
+
+        void add(String sql, Object... parameters) {
+            statements.computeIfAbsent(sql, (s) -> new ArrayList<>()).add(parameters);
+        }
+
+        void execute(Connection connection) throws SQLException {
+            for (Map.Entry<String, List<Object[]>> entry : statements.entrySet()) {
+                try (PreparedStatement ps = connection.prepareStatement(entry.getKey())) {
+                    int pending = 0;
+                    for (Object[] parameters : entry.getValue()) {
+                        for (int i = 0; i < parameters.length; i++) {
+                            bind(ps, i + 1, parameters[i]);
+                        }
+                        ps.addBatch();
+                        if (++pending == BATCH_SIZE) {
+                            ps.executeBatch();
+                            pending = 0;
+                        }
+                    }
+                    if (pending > 0) {
+                        ps.executeBatch();
+                    }
+                }
+            }
+            LogicUtils.logger.debugf("Event: BATCHED_WRITES, Statements: %d", statements.values().stream().mapToInt(List::size).sum());
+        }
+
+        private static void bind(PreparedStatement ps, int index, Object value) throws SQLException {
+            if (value == null) {
+                ps.setNull(index, Types.VARCHAR);
+            } else if (value instanceof byte[] bytes) {
+                ps.setBytes(index, bytes);
+            } else {
+                ps.setString(index, value.toString());
+            }
+        }
+    }
+
+    // Makes this class un-instantiatable
+    private BatchedMigration() {
+    }
+
+}
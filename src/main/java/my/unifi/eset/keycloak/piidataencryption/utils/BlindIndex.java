@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2025 Muhammad Lukman Nasaruddin <lukman.nasaruddin@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package my.unifi.eset.keycloak.piidataencryption.utils;
+
+import jakarta.persistence.EntityManager;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import my.unifi.eset.keycloak.piidataencryption.jpa.UserBlindIndexEntity;
+import org.jboss.logging.Logger;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.jpa.entities.UserEntity;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * Optional blind index that allows prefix searches on encrypted fields.
+ *
+ * For every indexed field of an encrypted user, the prefixes of its normalized
+ * value, and separately the prefixes of each of its words and of the @domain
+ * part of email-like values, are stored in USER_BLIND_INDEX as keyed hashes
+ * (HMAC-SHA256 of the field name, the kind of prefix & the prefix). Searching
+ * for a prefix then becomes an indexed equality lookup of the keyed hash of
+ * the search term. Since the index only holds prefixes, it is only used for
+ * terms whose matches are exactly the values or the substrings starting with
+ * the term, i.e. without interior wildcards and not longer than the longest
+ * indexed prefix, so it never widens the results of a search. Word prefixes
+ * are only looked up for searches matching anywhere in the value. Only
+ * prefixes between
+ * KC_PII_BLIND_INDEX_MIN_PREFIX & KC_PII_BLIND_INDEX_MAX_PREFIX characters
+ * are indexed, since very short prefixes reveal too much about the value
+ * distribution while longer ones add rows without narrowing searches much.
+ *
+ * The index is disabled unless KC_PII_BLIND_INDEX is true and a dedicated key
+ * is set in KC_PII_BLIND_INDEX_KEY. The key must stay the same across nodes
+ * & restarts, and is never derived from the encryption keys since those are
+ * rotated without re-indexing. Username, email, first name & last name are
+ * indexed, as well as the encrypted attributes listed in
+ * KC_PII_BLIND_INDEX_ATTRIBUTES (comma-separated).
+ *
+ * @author MLukman (https://github.com/MLukman)
+ */
+public final class BlindIndex {
+
+    static final Logger logger = Logger.getLogger(BlindIndex.class);
+
+    /**
+     * The UserEntity fields that are indexed.
+     */
+    public static final List<String> USER_FIELDS = List.of(UserModel.USERNAME, UserModel.EMAIL, UserModel.FIRST_NAME, UserModel.LAST_NAME);
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final byte VALUE_PREFIX = 'v';
+    private static final byte WORD_PREFIX = 'w';
+    private static final SecretKeySpec KEY = resolveKey(System.getenv("KC_PII_BLIND_INDEX_KEY"));
+    private static final boolean ENABLED = ConfigUtils.getBoolean("KC_PII_BLIND_INDEX", false) && requireKey();
+    private static final int MIN_PREFIX = Math.max(1, ConfigUtils.getInt("KC_PII_BLIND_INDEX_MIN_PREFIX", 3));
+    private static final int MAX_PREFIX = Math.max(MIN_PREFIX, ConfigUtils.getInt("KC_PII_BLIND_INDEX_MAX_PREFIX", 32));
+    private static final Set<String> ATTRIBUTES = parseAttributes(System.getenv("KC_PII_BLIND_INDEX_ATTRIBUTES"));
+
+    private static final ThreadLocal<Mac> MACS = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("Unable to instantiate MAC for algorithm " + ALGORITHM, ex);
+        }
+    });
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Checks if a field or attribute is indexed.
+     *
+     * @param field The UserEntity field or the attribute name
+     * @return true if indexed
+     */
+    public static boolean isIndexed(String field) {
+        return ENABLED && (USER_FIELDS.contains(field) || ATTRIBUTES.contains(field));
+    }
+
+    /**
+     * Gets the keyed hashes of all the prefixes to index for the values of a
+     * field.
+     *
+     * @param field The UserEntity field or the attribute name
+     * @param values The plain values
+     * @return The keyed hashes
+     */
+    public static Set<String> tokenHashes(String field, Collection<String> values) {
+        return tokenHashes(KEY, MIN_PREFIX, MAX_PREFIX, field, values);
+    }
+
+    static Set<String> tokenHashes(SecretKeySpec key, int minPrefix, int maxPrefix, String field, Collection<String> values) {
+        Set<String> hashes = new LinkedHashSet<>();
+        for (String value : values) {
+            String normalized = value != null ? value.trim().toLowerCase() : "";
+            if (normalized.isEmpty()) {
+                continue;
+            }
+            addPrefixes(hashes, key, minPrefix, maxPrefix, field, VALUE_PREFIX, normalized);
+            String[] words = normalized.split("\\s+");
+            if (words.length > 1) {
+                Arrays.stream(words).forEach((w) -> addPrefixes(hashes, key, minPrefix, maxPrefix, field, WORD_PREFIX, w));
+            }
+            int at = normalized.lastIndexOf('@');
+            if (at > 0) {
+                addPrefixes(hashes, key, minPrefix, maxPrefix, field, WORD_PREFIX, normalized.substring(at));
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Gets the keyed hashes to look up for a search term, i.e. a search token
+     * with optional trailing wildcards, plus leading wildcards if the search
+     * matches anywhere in the value. Quoted (exact) terms, terms with interior
+     * wildcards and terms shorter than the minimum prefix or longer than the
+     * maximum prefix are not looked up.
+     *
+     * @param term The search term
+     * @param fields The fields to search
+     * @param anywhere true if the search matches the term anywhere in the
+     * value, false if only at the start of the value
+     * @return The keyed hashes, empty if the blind index cannot be used
+     */
+    public static List<String> searchHashes(String term, Collection<String> fields, boolean anywhere) {
+        if (!ENABLED) {
+            return List.of();
+        }
+        return searchHashes(KEY, MIN_PREFIX, MAX_PREFIX, term, fields.stream().filter(BlindIndex::isIndexed).toList(), anywhere);
+    }
+
+    static List<String> searchHashes(SecretKeySpec key, int minPrefix, int maxPrefix, String term, Collection<String> fields, boolean anywhere) {
+        if (term == null || term.contains("\"")) {
+            return List.of();
+        }
+        String prefix = term.trim().toLowerCase().replaceAll("\\*+$", "");
+        if (anywhere) {
+            prefix = prefix.replaceAll("^\\*+", "");
+        }
+        if (prefix.contains("*") || prefix.length() < minPrefix || prefix.length() > maxPrefix) {
+            return List.of();
+        }
+        List<String> hashes = new ArrayList<>();
+        for (String field : fields) {
+            hashes.add(hash(key, field, VALUE_PREFIX, prefix));
+            if (anywhere) {
+                hashes.add(hash(key, field, WORD_PREFIX, prefix));
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Replaces the indexed prefixes of some fields of a user.
+     *
+     * @param em EntityManager
+     * @param realmId The realm ID
+     * @param userId The user ID
+     * @param valuesByField The plain values of each field to index
+     */
+    public static void index(EntityManager em, String realmId, String userId, Map<String, ? extends Collection<String>> valuesByField) {
+        List<String> fields = valuesByField.keySet().stream().filter(BlindIndex::isIndexed).toList();
+        if (fields.isEmpty()) {
+            return;
+        }
+        remove(em, userId, fields);
+        for (String field : fields) {
+            for (String token : tokenHashes(field, valuesByField.get(field))) {
+                em.persist(new UserBlindIndexEntity(KeycloakModelUtils.generateId(), userId, realmId, field, token));
+            }
+        }
+        logger.debugf("Event: BLIND_INDEX_UPDATED, Realm: %s, User: %s", realmId, userId);
+    }
+
+    /**
+     * Replaces the indexed prefixes of the username, email, first name & last
+     * name of a user.
+     *
+     * @param em EntityManager
+     * @param ue The UserEntity, holding the plain values
+     */
+    public static void indexUserEntity(EntityManager em, UserEntity ue) {
+        if (ENABLED) {
+            index(em, ue.getRealmId(), ue.getId(), userFieldValues(ue));
+        }
+    }
+
+    /**
+     * Gets the plain values of the indexed fields of a user entity.
+     *
+     * @param ue The UserEntity, holding the plain values
+     * @return The values keyed by the field names
+     */
+    static Map<String, List<String>> userFieldValues(UserEntity ue) {
+        Map<String, List<String>> values = new LinkedHashMap<>();
+        values.put(UserModel.USERNAME, Collections.singletonList(ue.getUsername()));
+        values.put(UserModel.EMAIL, Collections.singletonList(ue.getEmail()));
+        values.put(UserModel.FIRST_NAME, Collections.singletonList(ue.getFirstName()));
+        values.put(UserModel.LAST_NAME, Collections.singletonList(ue.getLastName()));
+        return values;
+    }
+
+    /**
+     * Removes the indexed prefixes of some fields of a user, e.g. after the
+     * user has been decrypted.
+     *
+     * @param em EntityManager
+     * @param userId The user ID
+     * @param fields The fields, or null for all fields
+     */
+    public static void remove(EntityManager em, String userId, Collection<String> fields) {
+        if (fields == null) {
+            em.createQuery("DELETE FROM UserBlindIndexEntity b WHERE b.userId = :userId")
+                    .setParameter("userId", userId)
+                    .executeUpdate();
+        } else if (!fields.isEmpty()) {
+            em.createQuery("DELETE FROM UserBlindIndexEntity b WHERE b.userId = :userId AND b.field IN :fields")
+                    .setParameter("userId", userId)
+                    .setParameter("fields", fields)
+                    .executeUpdate();
+        }
+    }
+
+    /**
+     * Keyed hash of a prefix of a field. The field name is part of the hashed
+     * input so that equal prefixes of different fields cannot be correlated,
+     * and so is the kind of prefix so that the prefixes of words are never
+     * looked up by searches matching only at the start of the value.
+     */
+    static String hash(SecretKeySpec key, String field, byte kind, String prefix) {
+        try {
+            Mac mac = MACS.get();
+            mac.init(key);
+            mac.update(field.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            mac.update(kind);
+            return HexFormat.of().formatHex(mac.doFinal(prefix.getBytes(StandardCharsets.UTF_8)));
+        } catch (InvalidKeyException | IllegalArgumentException ex) {
+            throw new IllegalStateException("Unable to compute blind index", ex);
+        }
+    }
+
+    private static SecretKeySpec resolveKey(String rawkey) {
+        return rawkey != null && !rawkey.isBlank() ? new SecretKeySpec(rawkey.getBytes(StandardCharsets.UTF_8), ALGORITHM) : null;
+    }
+
+    private static boolean requireKey() {
+        if (KEY == null) {
+            logger.error("KC_PII_BLIND_INDEX is enabled but KC_PII_BLIND_INDEX_KEY is not set, the blind index stays disabled");
+            return false;
+        }
+        return true;
+    }
+
+    private static void addPrefixes(Set<String> hashes, SecretKeySpec key, int minPrefix, int maxPrefix, String field, byte kind, String value) {
+        for (int i = minPrefix; i <= Math.min(value.length(), maxPrefix); i++) {
+            hashes.add(hash(key, field, kind, value.substring(0, i)));
+        }
+    }
+
+    private static Set<String> parseAttributes(String raw) {
+        if (raw == null || raw.isBlank()) {
+            return Set.of();
+        }
+        return Arrays.stream(raw.split(","))
+                .map(String::trim)
+                .filter((s) -> !s.isEmpty())
+                .collect(Collectors.toUnmodifiableSet());
+    }
+
+    // Makes this class un-instantiatable
+    private BlindIndex() {
+    }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2025 Muhammad Lukman Nasaruddin <lukman.nasaruddin@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package my.unifi.eset.keycloak.piidataencryption.utils;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Reads the optional tuning parameters of this provider from environment
+ * variables, in the same manner as the KC_PII_ENCKEY environment variable.
+ *
+ * @author MLukman (https://github.com/MLukman)
+ */
+public final class ConfigUtils {
+
+    static final Logger logger = Logger.getLogger(ConfigUtils.class);
+
+    /**
+     * Gets a numeric parameter.
+     *
+     * @param name The environment variable name
+     * @param defaultValue The value to use if not set or invalid
+     * @return The value
+     */
+    public static long getLong(String name, long defaultValue) {
+        String raw = System.getenv(name);
+        if (raw == null || raw.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(raw.trim());
+        } catch (NumberFormatException ex) {
+            logger.warnf("Invalid value '%s' for %s, using the default value %d instead", raw, name, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Gets a numeric parameter.
+     *
+     * @param name The environment variable name
+     * @param defaultValue The value to use if not set or invalid
+     * @return The value
+     */
+    public static int getInt(String name, int defaultValue) {
+        return (int) getLong(name, defaultValue);
+    }
+
+    /**
+     * Gets a boolean parameter.
+     *
+     * @param name The environment variable name
+     * @param defaultValue The value to use if not set
+     * @return The value
+     */
+    public static boolean getBoolean(String name, boolean defaultValue) {
+        String raw = System.getenv(name);
+        if (raw == null || raw.isBlank()) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(raw.trim());
+    }
+
+    // Makes this class un-instantiatable
+    private ConfigUtils() {
+    }
+
+}
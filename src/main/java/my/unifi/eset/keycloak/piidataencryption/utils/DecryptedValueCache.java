@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2025 Muhammad Lukman Nasaruddin <lukman.nasaruddin@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package my.unifi.eset.keycloak.piidataencryption.utils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Node-local cache of decrypted values keyed by their encrypted values, bounded
+ * by number of entries, approximate memory usage and time-to-live. Evicts the
+ * least recently used entries first.
+ *
+ * The cache is split into segments, each guarded by its own lock, so that
+ * concurrent lookups of different values rarely contend with each other.
+ *
+ * @author MLukman (https://github.com/MLukman)
+ */
+public final class DecryptedValueCache {
+
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments;
+    private final boolean enabled;
+    private final long ttlNanos;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxEntries Maximum number of cached values, 0 to disable caching
+     * @param maxBytes Maximum approximate memory used by the cached values
+     * @param ttlSeconds Maximum number of seconds a value stays cached
+     */
+    DecryptedValueCache(long maxEntries, long maxBytes, long ttlSeconds) {
+        this.enabled = maxEntries > 0 && maxBytes > 0 && ttlSeconds > 0;
+        this.ttlNanos = ttlSeconds * 1_000_000_000L;
+        this.segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(Math.max(1, maxEntries / SEGMENTS), Math.max(1, maxBytes / SEGMENTS));
+        }
+    }
+
+    /**
+     * Creates the cache using the KC_PII_CACHE_MAX_ENTRIES,
+     * KC_PII_CACHE_MAX_BYTES & KC_PII_CACHE_TTL environment variables. The
+     * cache is disabled unless KC_PII_CACHE_MAX_ENTRIES is set.
+     *
+     * @return DecryptedValueCache
+     */
+    static DecryptedValueCache fromEnvironment() {
+        return new DecryptedValueCache(
+                ConfigUtils.getLong("KC_PII_CACHE_MAX_ENTRIES", 0),
+                ConfigUtils.getLong("KC_PII_CACHE_MAX_BYTES", 64L * 1024 * 1024),
+                ConfigUtils.getLong("KC_PII_CACHE_TTL", 300));
+    }
+
+    /**
+     * Gets the cached decrypted value.
+     *
+     * @param encryptedValue The encrypted value
+     * @return The decrypted value, or null if not cached
+     */
+    String get(String encryptedValue) {
+        if (!enabled) {
+            return null;
+        }
+        String value = segmentFor(encryptedValue).get(encryptedValue, System.nanoTime());
+        if (value != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return value;
+    }
+
+    /**
+     * Caches a decrypted value.
+     *
+     * @param encryptedValue The encrypted value
+     * @param decryptedValue The decrypted value
+     */
+    void put(String encryptedValue, String decryptedValue) {
+        if (enabled && decryptedValue != null) {
+            segmentFor(encryptedValue).put(encryptedValue, decryptedValue, System.nanoTime() + ttlNanos);
+        }
+    }
+
+    /**
+     * Removes all cached values, e.g. when the encryption key changes.
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    private Segment segmentFor(String encryptedValue) {
+        int h = encryptedValue.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    private static long sizeOf(String encryptedValue, String decryptedValue) {
+        // rough estimate of two strings plus the entry overhead
+        return 2L * (encryptedValue.length() + decryptedValue.length()) + 96;
+    }
+
+    private static class Entry {
+
+        final String value;
+        final long expiresAt;
+        final long bytes;
+
+        Entry(String value, long expiresAt, long bytes) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.bytes = bytes;
+        }
+    }
+
+    private class Segment {
+
+        final long maxEntries;
+        final long maxBytes;
+        final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        long bytes = 0;
+
+        Segment(long maxEntries, long maxBytes) {
+            this.maxEntries = maxEntries;
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized String get(String key, long now) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expiresAt - now < 0) {
+                entries.remove(key);
+                bytes -= entry.bytes;
+                return null;
+            }
+            return entry.value;
+        }
+
+        synchronized void put(String key, String value, long expiresAt) {
+            Entry entry = new Entry(value, expiresAt, sizeOf(key, value));
+            Entry previous = entries.put(key, entry);
+            bytes += entry.bytes - (previous != null ? previous.bytes : 0);
+            Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+            while ((entries.size() > maxEntries || bytes > maxBytes) && eldest.hasNext()) {
+                bytes -= eldest.next().getValue().bytes;
+                eldest.remove();
+                evictions.increment();
+            }
+        }
+
+        synchronized void clear() {
+            entries.clear();
+            bytes = 0;
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+    }
+
+}
@@ -16,24 +16,30 @@
 
 package my.unifi.eset.keycloak.piidataencryption.utils;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.Base64;
-import java.util.HexFormat;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import my.unifi.eset.keycloak.piidataencryption.keys.EnvPiiKeyProviderFactory;
 import org.apache.commons.lang3.ArrayUtils;
 import org.jboss.logging.Logger;
-import org.keycloak.quarkus.runtime.configuration.Configuration;
 
 /**
  * Provides encryption functionalities.
@@ -43,7 +49,8 @@ import org.keycloak.quarkus.runtime.configuration.Configuration;
 public final class EncryptionUtils {
 
     /**
-     * Encryption algorithm to use.
+     * Encryption algorithm of the legacy (version 1) format, which is still
+     * decrypted and can still be written by setting KC_PII_CIPHER to AES-CBC.
      */
     static final String ALGORITHM = "AES/CBC/PKCS5Padding";
 
@@ -53,61 +60,225 @@ public final class EncryptionUtils {
      */
     static final String CIPHERTEXT_PREFIX = "$$$";
 
-    static SecretKeySpec key = null;
+    /**
+     * Schemes of the versioned format, i.e. CIPHERTEXT_PREFIX + scheme + ":" +
+     * key ID + ":" + Base64 of the nonce followed by the ciphertext &
+     * authentication tag. The key ID is absent from values written before key
+     * rotation was supported. The legacy format has no scheme and Base64
+     * never contains ":".
+     */
+    static final String SCHEME_AES_GCM = "g1";
+    static final String SCHEME_CHACHA20_POLY1305 = "c1";
+    private static final char SCHEME_SEPARATOR = ':';
+
+    /**
+     * The scheme used to encrypt new values, configured via KC_PII_CIPHER
+     * (AES-GCM, CHACHA20-POLY1305 or AES-CBC for the legacy format), null
+     * for the legacy format.
+     */
+    static final String WRITE_SCHEME = writeScheme(System.getenv("KC_PII_CIPHER"));
+
+    private static final int GCM_TAG_BITS = 128;
+    private static final int NONCE_LENGTH = 12;
+
+    /**
+     * The encryption keys, published by PiiKeyWatcher and swapped as a whole
+     * whenever they are reloaded so that they can be read without locking.
+     */
+    static final AtomicReference<KeyRing> KEYS = new AtomicReference<>();
+
+    /**
+     * Shared source of IVs. SecureRandom is thread-safe so a single instance
+     * avoids re-seeding for every encrypted value.
+     */
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * Per-thread Cipher instances so that the provider lookup only happens
+     * once per thread instead of once per value. Cipher is not thread-safe
+     * but re-initializing it via init() fully resets its state.
+     */
+    private static final ThreadLocal<Cipher> CIPHERS = cipherPerThread(ALGORITHM);
+    private static final ThreadLocal<Cipher> GCM_CIPHERS = cipherPerThread("AES/GCM/NoPadding");
+    private static final ThreadLocal<Cipher> CHACHA_CIPHERS = cipherPerThread("ChaCha20-Poly1305");
+    private static final ThreadLocal<byte[]> CHACHA_NONCES = new ThreadLocal<>();
+
+    /**
+     * Optional cache of decrypted values, see DecryptedValueCache.
+     */
+    private static final DecryptedValueCache CACHE = DecryptedValueCache.fromEnvironment();
 
     /**
-     * Encrypts the passed String value.
+     * Encrypts the passed String value without associated data.
      *
      * @param value String to encrypt
      * @return The encrypted value
      */
     public static String encryptValue(String value) {
+        return encryptValue(value, null);
+    }
+
+    /**
+     * Encrypts the passed String value, binding it to the passed associated
+     * data (see associatedData()) so that it can only be decrypted for the
+     * same user & field.
+     *
+     * @param value String to encrypt
+     * @param associatedData The associated data, or null for none
+     * @return The encrypted value
+     */
+    public static String encryptValue(String value, String associatedData) {
+        return encryptValue(value, associatedData, null);
+    }
+
+    /**
+     * Encrypts the passed String value using the data key of a realm (see
+     * RealmDataKeys), binding it to the passed associated data.
+     *
+     * @param value String to encrypt
+     * @param associatedData The associated data, or null for none
+     * @param realmId The realm the value belongs to, or null to use the
+     * primary key
+     * @return The encrypted value
+     */
+    public static String encryptValue(String value, String associatedData, String realmId) {
         try {
             if (value == null || isEncryptedValue(value)) {
                 return value;
             }
-            byte[] iv = new byte[16];
-            new SecureRandom().nextBytes(iv);
-            Cipher cipher = Cipher.getInstance(ALGORITHM);
-            cipher.init(Cipher.ENCRYPT_MODE, getEncryptionKey(), new IvParameterSpec(iv));
-            byte[] cipherText = cipher.doFinal(value.getBytes());
-            return CIPHERTEXT_PREFIX + Base64.getEncoder().encodeToString(ArrayUtils.addAll(iv, cipherText));
-        } catch (NoSuchAlgorithmException
-                | BadPaddingException
-                | IllegalBlockSizeException
-                | NoSuchPaddingException
-                | InvalidKeyException
-                | InvalidAlgorithmParameterException ex) {
+            if (WRITE_SCHEME == null) {
+                byte[] iv = new byte[16];
+                RANDOM.nextBytes(iv);
+                Cipher cipher = CIPHERS.get();
+                cipher.init(Cipher.ENCRYPT_MODE, getEncryptionKey(), new IvParameterSpec(iv));
+                byte[] cipherText = cipher.doFinal(value.getBytes());
+                return CIPHERTEXT_PREFIX + Base64.getEncoder().encodeToString(ArrayUtils.addAll(iv, cipherText));
+            }
+            KeyRing.Key key = RealmDataKeys.getActiveKey(realmId);
+            if (key == null) {
+                key = getKeyRing().getPrimary();
+            }
+            byte[] nonce = new byte[NONCE_LENGTH];
+            RANDOM.nextBytes(nonce);
+            Cipher cipher = initAead(WRITE_SCHEME, Cipher.ENCRYPT_MODE, key, nonce);
+            if (associatedData != null) {
+                cipher.updateAAD(associatedData.getBytes(StandardCharsets.UTF_8));
+            }
+            byte[] cipherText = cipher.doFinal(value.getBytes(StandardCharsets.UTF_8));
+            return CIPHERTEXT_PREFIX + WRITE_SCHEME + SCHEME_SEPARATOR + key.id + SCHEME_SEPARATOR + Base64.getEncoder().encodeToString(ArrayUtils.addAll(nonce, cipherText));
+        } catch (GeneralSecurityException ex) {
             return value;
         }
     }
 
     /**
-     * Decrypts the passed value.
+     * Decrypts the passed value without associated data.
      *
      * @param value String to decrypt
      * @return The decrypted value
      */
     public static String decryptValue(String value) {
+        return decryptValue(value, null);
+    }
+
+    /**
+     * Decrypts the passed value. Values that cannot be decrypted, e.g. because
+     * they have been tampered with or belong to another user/field, are
+     * returned as is.
+     *
+     * @param value String to decrypt
+     * @param associatedData The associated data it was encrypted with
+     * @return The decrypted value
+     */
+    public static String decryptValue(String value, String associatedData) {
+        String decrypted = tryDecryptValue(value, associatedData);
+        return decrypted != null ? decrypted : value;
+    }
+
+    /**
+     * Decrypts the passed value, returning null instead of the value itself if
+     * it cannot be decrypted. For authenticated values (see
+     * isAuthenticatedValue()), a non-null result means the value is intact
+     * and bound to the passed associated data.
+     *
+     * @param value String to decrypt
+     * @param associatedData The associated data it was encrypted with
+     * @return The decrypted value, the value itself if not encrypted, or null
+     */
+    public static String tryDecryptValue(String value, String associatedData) {
+        if (value == null || !isEncryptedValue(value)) {
+            return value;
+        }
+        String scheme = schemeOf(value);
+        // authenticated values are cached per associated data so that a cache hit never skips the binding
+        String cacheKey = scheme != null && associatedData != null ? associatedData + "\n" + value : value;
+        String cached = CACHE.get(cacheKey);
+        if (cached != null) {
+            return cached;
+        }
         try {
-            if (value == null || !isEncryptedValue(value)) {
-                return value;
+            Collection<KeyRing.Key> keys = keysOf(value);
+            for (KeyRing.Key key : keys) {
+                String decrypted = decrypt(value, scheme, key, associatedData, keys.size() > 1);
+                if (decrypted != null) {
+                    CACHE.put(cacheKey, decrypted);
+                    return decrypted;
+                }
             }
-            byte[] cipherTextWithIv = Base64.getDecoder().decode(value.substring(CIPHERTEXT_PREFIX.length()));
-            byte[] iv = ArrayUtils.subarray(cipherTextWithIv, 0, 16);
-            byte[] cipherText = ArrayUtils.subarray(cipherTextWithIv, 16, cipherTextWithIv.length);
-            Cipher cipher = Cipher.getInstance(ALGORITHM);
-            cipher.init(Cipher.DECRYPT_MODE, getEncryptionKey(), new IvParameterSpec(iv));
-            byte[] plainText = cipher.doFinal(cipherText);
-            return new String(plainText);
-        } catch (NoSuchAlgorithmException
-                | NoSuchPaddingException
-                | InvalidKeyException
-                | InvalidAlgorithmParameterException
-                | IllegalBlockSizeException
-                | BadPaddingException
-                | IllegalArgumentException ex) {
-            return value;
+        } catch (GeneralSecurityException | IllegalArgumentException ex) {
+            // unable to decrypt
+        }
+        return null;
+    }
+
+    /**
+     * Decrypts an encrypted value and verifies it. Values in an authenticated
+     * format are verified by their authentication tag, which also binds them
+     * to the user & field. Legacy values, which a wrong key can occasionally
+     * decrypt into garbage, are verified by comparing the hash of the
+     * decrypted value with the stored hash.
+     *
+     * @param hash The stored hash of the value, null if not available
+     * @param encryptedValue The encrypted value
+     * @param associatedData The associated data, see associatedData()
+     * @return The decrypted value, or null if it could not be verified
+     */
+    public static String decryptAndVerify(String hash, String encryptedValue, String associatedData) {
+        String decrypted = tryDecryptValue(encryptedValue, associatedData);
+        if (decrypted == null || isAuthenticatedValue(encryptedValue)) {
+            return decrypted;
+        }
+        return hash != null && hash.equalsIgnoreCase(LogicUtils.hash(decrypted)) ? decrypted : null;
+    }
+
+    /**
+     * Decrypts the passed value using a single key. Since a legacy value
+     * decrypted using a wrong key occasionally passes the padding check, the
+     * result is also required to be valid UTF-8 when the value may have been
+     * encrypted using more than one key.
+     */
+    private static String decrypt(String value, String scheme, KeyRing.Key key, String associatedData, boolean strict) {
+        try {
+            if (scheme == null) {
+                byte[] cipherTextWithIv = Base64.getDecoder().decode(value.substring(CIPHERTEXT_PREFIX.length()));
+                byte[] iv = ArrayUtils.subarray(cipherTextWithIv, 0, 16);
+                byte[] cipherText = ArrayUtils.subarray(cipherTextWithIv, 16, cipherTextWithIv.length);
+                Cipher cipher = CIPHERS.get();
+                cipher.init(Cipher.DECRYPT_MODE, key.aes, new IvParameterSpec(iv));
+                byte[] plainText = cipher.doFinal(cipherText);
+                if (strict) {
+                    StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(plainText));
+                }
+                return new String(plainText);
+            }
+            byte[] payload = Base64.getDecoder().decode(value.substring(value.lastIndexOf(SCHEME_SEPARATOR) + 1));
+            Cipher cipher = initAead(scheme, Cipher.DECRYPT_MODE, key, ArrayUtils.subarray(payload, 0, NONCE_LENGTH));
+            if (associatedData != null) {
+                cipher.updateAAD(associatedData.getBytes(StandardCharsets.UTF_8));
+            }
+            return new String(cipher.doFinal(payload, NONCE_LENGTH, payload.length - NONCE_LENGTH), StandardCharsets.UTF_8);
+        } catch (GeneralSecurityException | IllegalArgumentException | CharacterCodingException ex) {
+            return null;
         }
     }
 
@@ -122,30 +293,223 @@ public final class EncryptionUtils {
     }
 
     /**
-     * Gets encryption key from KC_PII_ENCKEY environment variable, or generate
-     * one from the JDBC URL of the database.
+     * Checks if the passed value is encrypted using an authenticated scheme,
+     * i.e. its integrity is verified by decrypting it.
+     *
+     * @param value The encrypted value
+     * @return true if authenticated, false if legacy or not encrypted
+     */
+    public static boolean isAuthenticatedValue(String value) {
+        return isEncryptedValue(value) && schemeOf(value) != null;
+    }
+
+    /**
+     * Checks if the passed value needs to be re-encrypted so that it is
+     * encrypted using the primary key and the scheme used to encrypt new
+     * values. Values of the legacy format are only re-encrypted if new values
+     * are not written in the legacy format, since the legacy format does not
+     * identify the key.
+     *
+     * @param value The value
+     * @return true if encrypted otherwise
+     */
+    public static boolean needsReencryption(String value) {
+        return needsReencryption(value, null);
+    }
+
+    /**
+     * Checks if the passed value needs to be re-encrypted so that it is
+     * encrypted using the data key of a realm, see needsReencryption(String).
+     *
+     * @param value The value
+     * @param realmId The realm the value belongs to, or null for the primary
+     * key
+     * @return true if encrypted otherwise
+     */
+    public static boolean needsReencryption(String value, String realmId) {
+        if (!isEncryptedValue(value) || WRITE_SCHEME == null) {
+            return false;
+        }
+        try {
+            KeyRing.Key key = RealmDataKeys.getActiveKey(realmId);
+            String keyId = key != null ? key.id : getKeyRing().getPrimaryId();
+            return !value.startsWith(CIPHERTEXT_PREFIX + WRITE_SCHEME + SCHEME_SEPARATOR + keyId + SCHEME_SEPARATOR);
+        } catch (GeneralSecurityException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Gets the ID of the key used to encrypt new values, see KeyRing.
+     *
+     * @return The key ID
+     * @throws GeneralSecurityException
+     */
+    public static String getPrimaryKeyId() throws GeneralSecurityException {
+        return getKeyRing().getPrimaryId();
+    }
+
+    /**
+     * Builds the associated data that binds an encrypted value to a field of
+     * a user.
+     *
+     * @param userId The user ID
+     * @param field The UserEntity field or the attribute name
+     * @return The associated data
+     */
+    public static String associatedData(String userId, String field) {
+        return userId + "/" + field;
+    }
+
+    /**
+     * Gets the cache of decrypted values, e.g. to monitor its hit ratio.
+     *
+     * @return DecryptedValueCache
+     */
+    public static DecryptedValueCache getDecryptedValueCache() {
+        return CACHE;
+    }
+
+    /**
+     * Publishes the encryption keys loaded by the PiiKeyProvider.
+     *
+     * @param keys The keys, primary key first
+     * @return true if the keys have changed
+     * @throws NoSuchAlgorithmException
+     */
+    public static boolean publishKeys(List<SecretKeySpec> keys) throws NoSuchAlgorithmException {
+        KeyRing ring = new KeyRing(keys);
+        if (ring.hasSameKeys(KEYS.get())) {
+            return false;
+        }
+        KEYS.set(ring);
+        // values decrypted using a removed key must not outlive it
+        CACHE.clear();
+        return true;
+    }
+
+    /**
+     * Gets the primary encryption key.
      *
      * @return SecretKey
      * @throws NoSuchAlgorithmException
      */
-    static synchronized SecretKey getEncryptionKey() throws NoSuchAlgorithmException {
-        if (key != null) {
-            return key;
+    static SecretKey getEncryptionKey() throws NoSuchAlgorithmException {
+        return getKeyRing().getPrimary().aes;
+    }
+
+    /**
+     * Gets the encryption keys. If none has been published yet, e.g. outside
+     * of Keycloak, they are read from the environment variables, see
+     * EnvPiiKeyProviderFactory.
+     *
+     * @return KeyRing
+     * @throws NoSuchAlgorithmException
+     */
+    static KeyRing getKeyRing() throws NoSuchAlgorithmException {
+        KeyRing ring = KEYS.get();
+        if (ring == null) {
+            KEYS.compareAndSet(null, new KeyRing(EnvPiiKeyProviderFactory.loadKeys()));
+            ring = KEYS.get();
+        }
+        return ring;
+    }
+
+    /**
+     * Gets the keys that may have encrypted a value: the key identified by
+     * the value, which is either in the KeyRing or a data key of a realm, or
+     * for values without key ID all keys of the KeyRing, primary key first.
+     *
+     * @param value The encrypted value
+     * @return The keys to try, empty if the key is unknown
+     * @throws NoSuchAlgorithmException
+     */
+    private static Collection<KeyRing.Key> keysOf(String value) throws NoSuchAlgorithmException {
+        KeyRing ring = getKeyRing();
+        String keyId = keyIdOf(value);
+        if (keyId == null) {
+            return ring.keys();
         }
-        String rawkey = System.getenv("KC_PII_ENCKEY");
-        if (rawkey == null || rawkey.isBlank()) {
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            String dbUrl = Configuration.getKcConfigValue("db-url").getRawValue();
-            if (dbUrl == null || dbUrl.isBlank()) {
-                throw new IllegalArgumentException("Unable to generate encryption key from JDBC URL of the database. Please explicitly set the encryption key using KC_PII_ENCKEY environment variable.");
+        KeyRing.Key key = ring.get(keyId);
+        if (key == null) {
+            key = RealmDataKeys.getKey(keyId);
+        }
+        return key != null ? List.of(key) : List.of();
+    }
+
+    /**
+     * Gets the ID of the key embedded in an encrypted value.
+     *
+     * @param value The encrypted value
+     * @return The key ID, or null for values without one
+     */
+    static String keyIdOf(String value) {
+        int separator = value.indexOf(SCHEME_SEPARATOR, CIPHERTEXT_PREFIX.length());
+        int next = separator > 0 ? value.indexOf(SCHEME_SEPARATOR, separator + 1) : -1;
+        return next > 0 ? value.substring(separator + 1, next) : null;
+    }
+
+    /**
+     * Gets the scheme of an encrypted value.
+     *
+     * @param value The encrypted value
+     * @return The scheme, or null for the legacy format
+     */
+    static String schemeOf(String value) {
+        int separator = value.indexOf(SCHEME_SEPARATOR, CIPHERTEXT_PREFIX.length());
+        return separator > 0 && separator <= CIPHERTEXT_PREFIX.length() + 4 ? value.substring(CIPHERTEXT_PREFIX.length(), separator) : null;
+    }
+
+    private static Cipher initAead(String scheme, int mode, KeyRing.Key key, byte[] nonce) throws GeneralSecurityException {
+        switch (scheme) {
+            case SCHEME_AES_GCM -> {
+                Cipher cipher = GCM_CIPHERS.get();
+                cipher.init(mode, key.aes, new GCMParameterSpec(GCM_TAG_BITS, nonce));
+                return cipher;
             }
-            md.update(dbUrl.getBytes());
-            rawkey = HexFormat.of().formatHex(md.digest()).toLowerCase();
-            Logger.getLogger(EncryptionUtils.class).warn(String.format("Encryption key %s was generated using MD5 hash of JDBC URL of the database. It is recommended to set this key as KC_PII_ENCKEY environment variable.", rawkey));
+            case SCHEME_CHACHA20_POLY1305 -> {
+                Cipher cipher = CHACHA_CIPHERS.get();
+                if (Arrays.equals(CHACHA_NONCES.get(), nonce)) {
+                    // the JDK refuses to re-initialize with the same key & nonce, even to decrypt the same value again
+                    byte[] other = new byte[NONCE_LENGTH];
+                    RANDOM.nextBytes(other);
+                    cipher.init(Cipher.ENCRYPT_MODE, key.chacha, new IvParameterSpec(other));
+                }
+                cipher.init(mode, key.chacha, new IvParameterSpec(nonce));
+                CHACHA_NONCES.set(nonce);
+                return cipher;
+            }
+            default ->
+                throw new NoSuchAlgorithmException("Unknown encryption scheme " + scheme);
+        }
+    }
+
+    private static ThreadLocal<Cipher> cipherPerThread(String algorithm) {
+        return ThreadLocal.withInitial(() -> {
+            try {
+                return Cipher.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException | NoSuchPaddingException ex) {
+                throw new IllegalStateException("Unable to instantiate cipher for algorithm " + algorithm, ex);
+            }
+        });
+    }
+
+    private static String writeScheme(String cipher) {
+        if (cipher == null || cipher.isBlank()) {
+            return SCHEME_AES_GCM;
         }
-        SecretKeySpec genKey = new SecretKeySpec(rawkey.getBytes(), "AES");
-        validateKey(genKey);
-        return key = genKey;
+        return switch (cipher.trim().toUpperCase()) {
+            case "AES-GCM" ->
+                SCHEME_AES_GCM;
+            case "CHACHA20-POLY1305" ->
+                SCHEME_CHACHA20_POLY1305;
+            case "AES-CBC" ->
+                null;
+            default -> {
+                Logger.getLogger(EncryptionUtils.class).warnf("Invalid value '%s' for KC_PII_CIPHER, using AES-GCM instead", cipher);
+                yield SCHEME_AES_GCM;
+            }
+        };
     }
 
     /**
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2025 Muhammad Lukman Nasaruddin <lukman.nasaruddin@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package my.unifi.eset.keycloak.piidataencryption.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The encryption keys in use, as provided by the PiiKeyProvider: the primary
+ * key that encrypts new values and the previous keys that are only used to
+ * decrypt values that have not been re-encrypted using the primary key yet
+ * (see KeyRotationTask). Immutable so that it can be swapped as a whole when
+ * the keys are reloaded.
+ *
+ * Every key is identified by the first 8 hex digits of the SHA-256 of the key,
+ * which is embedded in the values encrypted using it so that decrypting them
+ * does not need to try every key.
+ *
+ * @author MLukman (https://github.com/MLukman)
+ */
+final class KeyRing {
+
+    private final Key primary;
+    private final Map<String, Key> keys;
+
+    /**
+     * @param keys The keys, primary key first
+     * @throws NoSuchAlgorithmException
+     */
+    KeyRing(List<SecretKeySpec> keys) throws NoSuchAlgorithmException {
+        if (keys.isEmpty()) {
+            throw new IllegalArgumentException("No encryption key provided");
+        }
+        Map<String, Key> byId = new LinkedHashMap<>();
+        for (SecretKeySpec key : keys) {
+            EncryptionUtils.validateKey(key);
+            String id = idOf(key);
+            if (!byId.containsKey(id)) {
+                byId.put(id, new Key(id, key));
+            }
+        }
+        this.primary = byId.values().iterator().next();
+        this.keys = Collections.unmodifiableMap(byId);
+    }
+
+    /**
+     * @return The key that encrypts new values
+     */
+    Key getPrimary() {
+        return primary;
+    }
+
+    /**
+     * @return The ID of the primary key
+     */
+    String getPrimaryId() {
+        return primary.id;
+    }
+
+    /**
+     * Gets a key by its ID.
+     *
+     * @param id The key ID
+     * @return The key, or null if not in this keyring
+     */
+    Key get(String id) {
+        return keys.get(id);
+    }
+
+    /**
+     * @return All keys, primary key first
+     */
+    Collection<Key> keys() {
+        return keys.values();
+    }
+
+    /**
+     * Checks if this keyring holds the same keys as another, in the same
+     * order.
+     *
+     * @param other The other keyring
+     * @return true if same
+     */
+    boolean hasSameKeys(KeyRing other) {
+        return other != null && List.copyOf(keys.keySet()).equals(List.copyOf(other.keys.keySet()));
+    }
+
+    /**
+     * Gets the ID of a key.
+     *
+     * @param key The key
+     * @return The key ID
+     * @throws NoSuchAlgorithmException
+     */
+    static String idOf(SecretKey key) throws NoSuchAlgorithmException {
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getEncoded());
+        return String.format("%02x%02x%02x%02x", digest[0], digest[1], digest[2], digest[3]);
+    }
+
+    /**
+     * A key together with its ID and the ChaCha20 key derived from it, which
+     * is derived only once since ChaCha20 needs a 256-bit key whereas the
+     * encryption key may be shorter.
+     */
+    static final class Key {
+
+        final String id;
+        final SecretKeySpec aes;
+        final SecretKey chacha;
+
+        Key(String id, SecretKeySpec aes) throws NoSuchAlgorithmException {
+            this.id = id;
+            this.aes = aes;
+            Mac mac = Mac.getInstance("HmacSHA256");
+            try {
+                mac.init(new SecretKeySpec(aes.getEncoded(), "HmacSHA256"));
+            } catch (InvalidKeyException ex) {
+                throw new IllegalArgumentException("Invalid encryption key", ex);
+            }
+            this.chacha = new SecretKeySpec(mac.doFinal("pii-chacha20-poly1305".getBytes(StandardCharsets.UTF_8)), "ChaCha20");
+        }
+    }
+
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2025 Muhammad Lukman Nasaruddin <lukman.nasaruddin@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package my.unifi.eset.keycloak.piidataencryption.utils;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import my.unifi.eset.keycloak.piidataencryption.jpa.EncryptedUserAttributeEntity;
+import my.unifi.eset.keycloak.piidataencryption.jpa.EncryptedUserEntity;
+import my.unifi.eset.keycloak.piidataencryption.jpa.KeyRotationPassEntity;
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.PostMigrationEvent;
+import org.keycloak.services.scheduled.ClusterAwareScheduledTaskRunner;
+import org.keycloak.timer.ScheduledTask;
+import org.keycloak.timer.TimerProvider;
+
+/**
+ * Re-encrypts the rows of USER_ENTITY_ENCRYPTED & USER_ATTRIBUTE_ENCRYPTED
+ * that are not encrypted using the data key of their realm (see
+ * RealmDataKeys), or the primary key (see KeyRing) if data keys are disabled,
+ * so that a previous key can eventually be removed from the PiiKeyProvider.
+ * Before that, the data keys that have expired are rotated and those not
+ * wrapped using the primary key are wrapped again.
+ *
+ * The task is run periodically by one node of the cluster at a time, the pass
+ * being run within the cluster lock of the task. Since the lock is only held
+ * for the interval of the task, a pass stops shortly before the interval
+ * elapses and the next run resumes it, on whichever node, from the cursor
+ * saved in the KEY_ROTATION_PASS table. Rows are scanned in ID order in small
+ * chunks, each in its own transaction with the rows locked until it commits
+ * so that concurrent updates of the same users are never overwritten, with a
+ * pause between chunks to limit the load on the database. Legacy values,
+ * which do not identify their key, are only re-encrypted once their decrypted
+ * value matches the hash stored in the user tables. Once a full pass has found
+ * nothing to re-encrypt, the following passes are skipped until the primary
+ * key or any data key changes.
+ *
+ * @author MLukman (https://github.com/MLukman)
+ */
+public class KeyRotationTask implements ScheduledTask {
+
+    static final Logger logger = Logger.getLogger(KeyRotationTask.class);
+
+    public static final String TASK_NAME = "pii-data-encryption-key-rotation";
+
+    /**
+     * Number of milliseconds between passes, configured in seconds via
+     * KC_PII_REKEY_INTERVAL. 0 disables the re-encryption.
+     */
+    static final long INTERVAL_MILLIS = ConfigUtils.getLong("KC_PII_REKEY_INTERVAL", 3600) * 1000;
+
+    /**
+     * Number of rows re-encrypted per transaction, configured via
+     * KC_PII_REKEY_CHUNK_SIZE.
+     */
+    static final int CHUNK_SIZE = Math.max(1, ConfigUtils.getInt("KC_PII_REKEY_CHUNK_SIZE", 200));
+
+    /**
+     * Number of milliseconds to pause between chunks, configured via
+     * KC_PII_REKEY_PAUSE.
+     */
+    static final long PAUSE_MILLIS = Math.max(0, ConfigUtils.getLong("KC_PII_REKEY_PAUSE", 500));
+
+    /**
+     * Portion of the interval a single run may spend before leaving the rest
+     * of the pass to the next run, so that the cluster lock never expires
+     * while the pass is running.
+     */
+    static final double RUN_BUDGET = 0.8;
+
+    private final KeycloakSessionFactory ksf;
+
+    public KeyRotationTask(KeycloakSessionFactory ksf) {
+        this.ksf = ksf;
+    }
+
+    /**
+     * Schedules the periodic passes once the database has been migrated.
+     *
+     * @param ksf KeycloakSessionFactory
+     */
+    public static void register(KeycloakSessionFactory ksf) {
+        if (INTERVAL_MILLIS <= 0) {
+            return;
+        }
+        ksf.register((event) -> {
+            if (event instanceof PostMigrationEvent) {
+                KeycloakModelUtils.runJobInTransaction(ksf, (session) -> {
+                    session.getProvider(TimerProvider.class).schedule(new ClusterAwareScheduledTaskRunner(ksf, new KeyRotationTask(ksf), INTERVAL_MILLIS), INTERVAL_MILLIS, TASK_NAME);
+                });
+            }
+        });
+    }
+
+    /**
+     * Runs or resumes a pass unless there is nothing left to re-encrypt.
+     *
+     * @param session KeycloakSession
+     */
+    @Override
+    public void run(KeycloakSession session) {
+        String keys;
+        try {
+            // committed first so that the pass below uses the new data keys
+            KeycloakModelUtils.runJobInTransaction(ksf, RealmDataKeys::maintain);
+            keys = keysOf(session);
+        } catch (GeneralSecurityException ex) {
+            logger.error("Unable to resolve the encryption key", ex);
+            return;
+        }
+        try {
+            rotate(keys, System.currentTimeMillis() + (long) (INTERVAL_MILLIS * RUN_BUDGET));
+        } catch (RuntimeException ex) {
+            logger.error("Key rotation failed", ex);
+        }
+    }
+
+    /**
+     * Identifies the keys that values should be encrypted using: the ID of
+     * the primary key together with the creation time of the newest data key.
+     */
+    private static String keysOf(KeycloakSession session) throws GeneralSecurityException {
+        return EncryptionUtils.getPrimaryKeyId() + "/" + RealmDataKeys.newestCreated(session);
+    }
+
+    /**
+     * Runs a pass, or resumes the unfinished pass of the same keys, until
+     * done or until the deadline. The pass is saved in the KEY_ROTATION_PASS
+     * table together with every chunk, so whichever node runs the task next
+     * resumes it.
+     *
+     * @param keys The keys, see keysOf()
+     * @param deadline The time in milliseconds to leave the rest of the pass
+     * to the next run
+     */
+    void rotate(String keys, long deadline) {
+        KeyRotationPassEntity pass = KeycloakModelUtils.runJobInTransactionWithResult(ksf, (session) -> startPass(em(session), keys));
+        if (KeyRotationPassEntity.STATE_COMPLETED.equals(pass.getState())) {
+            return; // nothing left to re-encrypt until the keys change
+        }
+        // compare against the newest data keys, not those this node is still encrypting with
+        KeycloakModelUtils.runJobInTransaction(ksf, RealmDataKeys::loadActiveKeys);
+        while (true) {
+            pass = KeycloakModelUtils.runJobInTransactionWithResult(ksf, (session) -> rotateChunk(em(session)));
+            if (pass.getState() == null || KeyRotationPassEntity.STATE_COMPLETED.equals(pass.getState())) {
+                logger.infof("Event: REKEY_COMPLETED, Keys: %s, Rotated: %d, Failed: %d", keys, pass.getRotated(), pass.getFailed());
+                return;
+            }
+            try {
+                Thread.sleep(PAUSE_MILLIS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                logger.debugf("Event: REKEY_PAUSED, Keys: %s, State: %s, After: %s", keys, pass.getState(), pass.getLastId());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Gets the saved pass of the passed keys, or starts a new one if the keys
+     * have changed.
+     */
+    private static KeyRotationPassEntity startPass(EntityManager em, String keys) {
+        KeyRotationPassEntity pass = em.find(KeyRotationPassEntity.class, KeyRotationPassEntity.ID);
+        if (pass == null) {
+            pass = new KeyRotationPassEntity(KeyRotationPassEntity.ID);
+            em.persist(pass);
+        } else if (keys.equals(pass.getKeys())) {
+            if (!KeyRotationPassEntity.STATE_COMPLETED.equals(pass.getState())) {
+                logger.debugf("Event: REKEY_RESUMED, Keys: %s, State: %s, After: %s", keys, pass.getState(), pass.getLastId());
+            }
+            return pass;
+        }
+        pass.setKeys(keys);
+        restart(pass);
+        logger.debugf("Event: REKEY_STARTED, Keys: %s", keys);
+        return pass;
+    }
+
+    private static void restart(KeyRotationPassEntity pass) {
+        pass.setState(KeyRotationPassEntity.STATE_USERS);
+        pass.setLastId("");
+        pass.setRotated(0);
+        pass.setFailed(0);
+        pass.setUpdated(System.currentTimeMillis());
+    }
+
+    /**
+     * Re-encrypts the next chunk of the saved pass and saves the pass in the
+     * same transaction. Once the pass is over, it is completed if it found
+     * nothing to re-encrypt, or else restarted, since values may still have
+     * been encrypted using stale keys by other nodes during the pass.
+     *
+     * @return A copy of the pass, with a null state if the pass is over and
+     * has been restarted
+     */
+    private static KeyRotationPassEntity rotateChunk(EntityManager em) {
+        KeyRotationPassEntity pass = em.find(KeyRotationPassEntity.class, KeyRotationPassEntity.ID);
+        boolean more = KeyRotationPassEntity.STATE_USERS.equals(pass.getState())
+                ? rotateUserEntities(em, pass)
+                : rotateUserAttributeEntities(em, pass);
+        KeyRotationPassEntity copy = new KeyRotationPassEntity(pass.getId());
+        copy.setKeys(pass.getKeys());
+        copy.setRotated(pass.getRotated());
+        copy.setFailed(pass.getFailed());
+        if (more) {
+            copy.setState(pass.getState());
+        } else if (KeyRotationPassEntity.STATE_USERS.equals(pass.getState())) {
+            pass.setState(KeyRotationPassEntity.STATE_ATTRIBUTES);
+            pass.setLastId("");
+            copy.setState(pass.getState());
+        } else if (pass.getRotated() + pass.getFailed() == 0) {
+            pass.setState(KeyRotationPassEntity.STATE_COMPLETED);
+            copy.setState(pass.getState());
+        } else {
+            restart(pass);
+        }
+        copy.setLastId(pass.getLastId());
+        pass.setUpdated(System.currentTimeMillis());
+        return copy;
+    }
+
+    private static EntityManager em(KeycloakSession session) {
+        return session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    }
+
+    /**
+     * @return true if there may be more rows after the chunk
+     */
+    private static boolean rotateUserEntities(EntityManager em, KeyRotationPassEntity pass) {
+        List<Object[]> rows = em.createQuery("SELECT e, u.id, u.realmId, u.username, u.email, u.firstName, u.lastName FROM EncryptedUserEntity e JOIN e.user u WHERE e.id > :lastId ORDER BY e.id", Object[].class)
+                .setParameter("lastId", pass.getLastId())
+                .setMaxResults(CHUNK_SIZE)
+                .setLockMode(LockModeType.PESSIMISTIC_WRITE)
+                .getResultList();
+        for (Object[] row : rows) {
+            EncryptedUserEntity eue = (EncryptedUserEntity) row[0];
+            String userId = (String) row[1];
+            String realmId = (String) row[2];
+            pass.setLastId(eue.getId());
+            String username = reencrypt(eue.getUsername(), (String) row[3], userId, realmId, UserModel.USERNAME);
+            String email = reencrypt(eue.getEmail(), (String) row[4], userId, realmId, UserModel.EMAIL);
+            String firstName = reencrypt(eue.getFirstName(), (String) row[5], userId, realmId, UserModel.FIRST_NAME);
+            String lastName = reencrypt(eue.getLastName(), (String) row[6], userId, realmId, UserModel.LAST_NAME);
+            if (username == null || email == null || firstName == null || lastName == null) {
+                logger.warnf("Event: REKEY_FAILED, User: %s", userId);
+                pass.setFailed(pass.getFailed() + 1);
+                continue;
+            }
+            if (username != eue.getUsername() || email != eue.getEmail() || firstName != eue.getFirstName() || lastName != eue.getLastName()) {
+                eue.setUsername(username);
+                eue.setEmail(email);
+                eue.setFirstName(firstName);
+                eue.setLastName(lastName);
+                pass.setRotated(pass.getRotated() + 1);
+            }
+        }
+        return rows.size() == CHUNK_SIZE;
+    }
+
+    /**
+     * @return true if there may be more rows after the chunk
+     */
+    private static boolean rotateUserAttributeEntities(EntityManager em, KeyRotationPassEntity pass) {
+        List<Object[]> rows = em.createQuery("SELECT e, u.id, u.realmId, a.value, a.longValue FROM EncryptedUserAttributeEntity e JOIN e.user u LEFT JOIN e.attribute a WHERE e.id > :lastId ORDER BY e.id", Object[].class)
+                .setParameter("lastId", pass.getLastId())
+                .setMaxResults(CHUNK_SIZE)
+                .setLockMode(LockModeType.PESSIMISTIC_WRITE)
+                .getResultList();
+        for (Object[] row : rows) {
+            EncryptedUserAttributeEntity euae = (EncryptedUserAttributeEntity) row[0];
+            String userId = (String) row[1];
+            String realmId = (String) row[2];
+            pass.setLastId(euae.getId());
+            String hash = row[3] != null ? (String) row[3] : (String) row[4];
+            String value = reencrypt(euae.getValue(), hash, userId, realmId, euae.getName());
+            if (value == null) {
+                logger.warnf("Event: REKEY_FAILED, User: %s, Attribute: %s", userId, euae.getName());
+                pass.setFailed(pass.getFailed() + 1);
+            } else if (value != euae.getValue()) {
+                euae.setValue(value);
+                pass.setRotated(pass.getRotated() + 1);
+            }
+        }
+        return rows.size() == CHUNK_SIZE;
+    }
+
+    /**
+     * Re-encrypts a value if needed.
+     *
+     * @param value The encrypted value
+     * @param hash The hash stored in place of the value, used to verify legacy
+     * values
+     * @return The same value instance if not needed, the re-encrypted value,
+     * or null if the value cannot be decrypted & verified using any key of the
+     * keyring
+     */
+    private static String reencrypt(String value, String hash, String userId, String realmId, String field) {
+        if (!EncryptionUtils.needsReencryption(value, realmId)) {
+            return value;
+        }
+        String associatedData = EncryptionUtils.associatedData(userId, field);
+        String decrypted = EncryptionUtils.decryptAndVerify(hash, value, associatedData);
+        return decrypted != null ? EncryptionUtils.encryptValue(decrypted, associatedData, realmId) : null;
+    }
+
+}
@@ -18,23 +18,30 @@ package my.unifi.eset.keycloak.piidataencryption.utils;
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.NoResultException;
 import jakarta.persistence.Query;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import my.unifi.eset.keycloak.piidataencryption.admin.PiiDataEncryptionValidatorProvider;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import my.unifi.eset.keycloak.piidataencryption.jpa.EncryptedUserAttributeEntity;
 import my.unifi.eset.keycloak.piidataencryption.jpa.EncryptedUserEntity;
 import my.unifi.eset.keycloak.piidataencryption.jpa.EncryptedUserProvider;
+import my.unifi.eset.keycloak.piidataencryption.listeners.EncryptedEntityLookup;
 import org.apache.commons.codec.digest.DigestUtils;
+import org.hibernate.engine.spi.EntityEntry;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.persister.entity.EntityPersister;
 import org.jboss.logging.Logger;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
 import org.keycloak.models.UserProvider;
 import org.keycloak.models.jpa.entities.UserAttributeEntity;
 import org.keycloak.models.jpa.entities.UserEntity;
 import org.keycloak.models.utils.KeycloakModelUtils;
-import org.keycloak.representations.userprofile.config.UPAttribute;
 import org.keycloak.storage.jpa.JpaHashUtils;
-import org.keycloak.userprofile.DeclarativeUserProfileProvider;
-import org.keycloak.userprofile.UserProfileProvider;
 
 /**
  * Provides core logics such as encryption/decryption of user entity & user
@@ -47,6 +54,18 @@ public final class LogicUtils {
 
     static final Logger logger = Logger.getLogger(LogicUtils.class);
 
+    /**
+     * Number of users processed per chunk when encrypting/decrypting all users
+     * of a realm.
+     */
+    public static final int MIGRATION_CHUNK_SIZE = 500;
+
+    /**
+     * Whether to look users up by hash or by plain value first, per realm, see
+     * UserLookupCache.
+     */
+    private static final UserLookupCache USER_LOOKUP_CACHE = new UserLookupCache();
+
     /**
      * Enables/disables user encryption for a particular realm
      *
@@ -90,24 +109,7 @@ public final class LogicUtils {
      * @return true if should encrypted, false if not
      */
     public static boolean shouldEncryptAttribute(KeycloakSession ks, String realmId, String attributeName) {
-        if (!isUserEncryptionEnabled(ks, realmId)) {
-            return false;
-        }
-        if (attributeName.startsWith("pii-")) {
-            return true;
-        }
-        try {
-            UserProfileProvider upp = ks.getProvider(UserProfileProvider.class);
-            if (upp instanceof DeclarativeUserProfileProvider dup) {
-                UPAttribute upa = dup.getConfiguration().getAttribute(attributeName);
-                if (upa != null && upa.getValidations().containsKey(PiiDataEncryptionValidatorProvider.ID)) {
-                    return Boolean.parseBoolean(String.valueOf(upa.getValidations().get(PiiDataEncryptionValidatorProvider.ID).getOrDefault("enable", false)));
-                }
-            }
-        } catch (Exception ex) {
-            return false;
-        }
-        return false;
+        return AttributeEncryptionPolicy.of(ks, ks.realms().getRealm(realmId)).shouldEncrypt(attributeName);
     }
 
     /**
@@ -134,6 +136,50 @@ public final class LogicUtils {
                 .getSingleResult();
     }
 
+    /**
+     * Loads the user entity with the specific ID together with its attributes
+     * in raw load mode, i.e. keeping the hash values of their rows without
+     * decrypting them, and passes it to a maintenance work that only needs the
+     * values that are not encrypted yet. Once the work is done, the pending
+     * changes are flushed and the raw entities are detached so that they are
+     * loaded decrypted if needed again. A user that is already managed by the
+     * persistence context is passed as is since it is already decrypted.
+     *
+     * @param em EntityManager
+     * @param id User ID
+     * @param work The work to perform on the UserEntity
+     * @return false if the user does not exist
+     */
+    public static boolean withRawUserEntity(EntityManager em, String id, Consumer<UserEntity> work) {
+        SharedSessionContractImplementor session = em.unwrap(SharedSessionContractImplementor.class);
+        EntityPersister persister = session.getFactory().getMappingMetamodel().getEntityDescriptor(UserEntity.class);
+        if (session.getPersistenceContextInternal().getEntity(session.generateEntityKey(id, persister)) instanceof UserEntity managed) {
+            work.accept(managed);
+            return true;
+        }
+        EncryptedEntityLookup lookup = EncryptedEntityLookup.of(session);
+        List<UserEntity> users;
+        Set<String> rawUserIds;
+        lookup.beginRawLoad();
+        try {
+            users = em.createQuery("SELECT DISTINCT u FROM UserEntity u LEFT JOIN FETCH u.attributes WHERE u.id = :id", UserEntity.class)
+                    .setParameter("id", id)
+                    .getResultList();
+        } finally {
+            rawUserIds = lookup.endRawLoad();
+        }
+        if (users.isEmpty()) {
+            return false;
+        }
+        try {
+            work.accept(users.get(0));
+            em.flush();
+        } finally {
+            detachUserEntities(em, rawUserIds);
+        }
+        return true;
+    }
+
     /**
      * Gets existing encrypted user entity if exists, if not exists then either
      * create a new one or return null
@@ -185,25 +231,36 @@ public final class LogicUtils {
     }
 
     /**
-     * Encrypts all existing user entities under a specific realm
+     * Encrypts all existing user entities under a specific realm. Users are
+     * processed in chunks of MIGRATION_CHUNK_SIZE ordered by ID, and each
+     * chunk is flushed and detached from the persistence context before the
+     * next one is loaded so that memory usage does not grow with the number of
+     * users.
      *
      * @param ks KeycloakSession
      * @param em EntityManager
      * @param realm The RealmModel to encrypt all of its users
      */
     public static void encryptExistingUserEntities(KeycloakSession ks, EntityManager em, RealmModel realm) {
-        List<UserEntity> realmUsers = em.createQuery("SELECT u FROM UserEntity u WHERE u.realmId = :realmId", UserEntity.class).setParameter("realmId", realm.getId()).getResultList();
-        logger.debugf("Event: REALM_USERS_ENCRYPTION, Realm: %s, Total Users: %s", realm.getId(), realmUsers.size());
-        for (UserEntity user : realmUsers) {
-            if (user.getServiceAccountClientLink() != null) {
-                continue; // skip service accounts
-            }
-            encryptUserEntity(ks, em, user);
-            logger.debugf("Event: USER_ENCRYPTION, Realm: %s, User: %s", realm.getId(), user.getId());
-            for (UserAttributeEntity uae : user.getAttributes()) {
-                encryptUserAttributeEntity(ks, em, uae);
-            }
-        }
+        logger.debugf("Event: REALM_USERS_ENCRYPTION, Realm: %s, Total Users: %s", realm.getId(), countUserEntities(em, realm.getId()));
+        forEachUserIdChunk(em, realm.getId(), true, (ids) -> encryptUserEntities(ks, em, realm, ids));
+    }
+
+    /**
+     * Encrypts the user entities with the specific IDs, together with their
+     * attributes
+     *
+     * @param ks KeycloakSession
+     * @param em EntityManager
+     * @param realm The RealmModel the users belong to
+     * @param ids The user IDs
+     */
+    public static void encryptUserEntities(KeycloakSession ks, EntityManager em, RealmModel realm, List<String> ids) {
+        List<UserEntity> users = prefetched(em, () -> em.createQuery("SELECT DISTINCT u FROM UserEntity u LEFT JOIN FETCH u.attributes WHERE u.id IN :ids AND u.realmId = :realmId", UserEntity.class)
+                .setParameter("ids", ids)
+                .setParameter("realmId", realm.getId())
+                .getResultList());
+        BatchedMigration.encryptUserEntities(ks, em, realm, users);
     }
 
     /**
@@ -225,10 +282,10 @@ public final class LogicUtils {
             // somehow the value is already hashed so we skip it to avoid double hash/encrypt
             return;
         }
-        eue.setUsername(EncryptionUtils.encryptValue(ue.getUsername()));
-        eue.setEmail(EncryptionUtils.encryptValue(ue.getEmail()));
-        eue.setFirstName(EncryptionUtils.encryptValue(ue.getFirstName()));
-        eue.setLastName(EncryptionUtils.encryptValue(ue.getLastName()));
+        eue.setUsername(EncryptionUtils.encryptValue(ue.getUsername(), EncryptionUtils.associatedData(ue.getId(), UserModel.USERNAME), ue.getRealmId()));
+        eue.setEmail(EncryptionUtils.encryptValue(ue.getEmail(), EncryptionUtils.associatedData(ue.getId(), UserModel.EMAIL), ue.getRealmId()));
+        eue.setFirstName(EncryptionUtils.encryptValue(ue.getFirstName(), EncryptionUtils.associatedData(ue.getId(), UserModel.FIRST_NAME), ue.getRealmId()));
+        eue.setLastName(EncryptionUtils.encryptValue(ue.getLastName(), EncryptionUtils.associatedData(ue.getId(), UserModel.LAST_NAME), ue.getRealmId()));
         em.persist(eue);
         Query update = em.createQuery("UPDATE UserEntity u SET u.username = :username, u.email = :email, u.emailConstraint = :emailConstraint, u.firstName = :firstName, u.lastName = :lastName WHERE u.id = :id");
         update.setParameter("id", ue.getId());
@@ -243,6 +300,8 @@ public final class LogicUtils {
         update.setParameter("firstName", hash(ue.getFirstName()));
         update.setParameter("lastName", hash(ue.getLastName()));
         update.executeUpdate();
+        BlindIndex.indexUserEntity(em, ue);
+        EncryptedEntityLookup.of(em.unwrap(SharedSessionContractImplementor.class)).evict(ue.getId());
     }
 
     /**
@@ -260,9 +319,17 @@ public final class LogicUtils {
                 return;
             }
             EncryptedUserAttributeEntity euae = getEncryptedUserAttributeEntity(em, uae.getUser(), uae.getName(), true);
-            euae.setValue(EncryptionUtils.encryptValue(value));
+            euae.setValue(EncryptionUtils.encryptValue(value, EncryptionUtils.associatedData(uae.getUser().getId(), uae.getName()), uae.getUser().getRealmId()));
             euae.setAttribute(uae);
             em.persist(euae);
+            EncryptedEntityLookup.of(em.unwrap(SharedSessionContractImplementor.class)).evict(uae.getUser().getId());
+            if (BlindIndex.isIndexed(uae.getName())) {
+                List<String> values = uae.getUser().getAttributes().stream()
+                        .filter((a) -> a.getName().equals(uae.getName()) && a.getValue() != null && !isHash(a.getValue()))
+                        .map(UserAttributeEntity::getValue)
+                        .toList();
+                BlindIndex.index(em, uae.getUser().getRealmId(), uae.getUser().getId(), Map.of(uae.getName(), values));
+            }
             if (value.length() > 255) {
                 Query update = em.createQuery("UPDATE UserAttributeEntity u SET u.value = null, u.longValue = :longValue, u.longValueHash = :longValueHash, u.longValueHashLowerCase = :longValueHashLowerCase WHERE u.id = :id");
                 update.setParameter("id", uae.getId());
@@ -280,28 +347,26 @@ public final class LogicUtils {
     }
 
     /**
-     * Decrypts all existing user entities under a specific realm
+     * Decrypts all existing user entities under a specific realm. Users are
+     * processed in chunks the same way as encryptExistingUserEntities().
      *
      * @param em EntityManager
      * @param realm RealmModel
      */
     public static void decryptExistingUserEntities(EntityManager em, RealmModel realm) {
-        List<UserEntity> realmUsers = em.createQuery("SELECT u FROM UserEntity u WHERE u.realmId = :realmId", UserEntity.class).setParameter("realmId", realm.getId()).getResultList();
-        for (UserEntity user : realmUsers) {
-            try {
-                EncryptedUserEntity eue = getEncryptedUserEntity(em, user, false);
-                if (eue != null) {
-                    decryptUserEntity(em, realm, eue);
-                    logger.debugf("Event: USER_DECRYPTION, Realm: %s, User: %s", realm.getId(), user.getId());
-                }
-                List<EncryptedUserAttributeEntity> encryptedAttributes = em.createQuery("SELECT a FROM EncryptedUserAttributeEntity a WHERE a.user = :user", EncryptedUserAttributeEntity.class).setParameter("user", user).getResultList();
-                for (EncryptedUserAttributeEntity euae : encryptedAttributes) {
-                    decryptUserAttributeEntity(em, realm, euae);
-                }
-            } catch (DecryptionFailureException ex) {
-                ex.outputToLog(logger);
-            }
-        }
+        forEachUserIdChunk(em, realm.getId(), false, (ids) -> decryptUserEntities(em, realm, ids));
+    }
+
+    /**
+     * Decrypts the user entities with the specific IDs, together with their
+     * attributes
+     *
+     * @param em EntityManager
+     * @param realm The RealmModel the users belong to
+     * @param ids The user IDs
+     */
+    public static void decryptUserEntities(EntityManager em, RealmModel realm, List<String> ids) {
+        BatchedMigration.decryptUserEntities(em, realm, ids);
     }
 
     /**
@@ -313,23 +378,26 @@ public final class LogicUtils {
      */
     public static void decryptUserEntity(EntityManager em, RealmModel realm, EncryptedUserEntity eue) {
         UserEntity user = eue.getUser();
-        if (!user.getUsername().equalsIgnoreCase(EncryptionUtils.decryptValue(eue.getUsername()))) {
+        String username = EncryptionUtils.decryptValue(eue.getUsername(), EncryptionUtils.associatedData(user.getId(), UserModel.USERNAME));
+        if (!user.getUsername().equalsIgnoreCase(username)) {
             throw new DecryptionFailureException(realm.getId(), user.getId());
         }
         Query update = em.createQuery("UPDATE UserEntity u SET u.username = :username, u.email = :email, u.emailConstraint = :emailConstraint, u.firstName = :firstName, u.lastName = :lastName WHERE u.id = :id");
         update.setParameter("id", user.getId());
-        update.setParameter("username", EncryptionUtils.decryptValue(eue.getUsername()));
-        String decryptedEmail = EncryptionUtils.decryptValue(eue.getEmail());
+        update.setParameter("username", username);
+        String decryptedEmail = EncryptionUtils.decryptValue(eue.getEmail(), EncryptionUtils.associatedData(user.getId(), UserModel.EMAIL));
         update.setParameter("email", decryptedEmail);
         if (!realm.isDuplicateEmailsAllowed()) {
             update.setParameter("emailConstraint", decryptedEmail);
         } else {
             update.setParameter("emailConstraint", user.getEmailConstraint()); // basically no change
         }
-        update.setParameter("firstName", EncryptionUtils.decryptValue(eue.getFirstName()));
-        update.setParameter("lastName", EncryptionUtils.decryptValue(eue.getLastName()));
+        update.setParameter("firstName", EncryptionUtils.decryptValue(eue.getFirstName(), EncryptionUtils.associatedData(user.getId(), UserModel.FIRST_NAME)));
+        update.setParameter("lastName", EncryptionUtils.decryptValue(eue.getLastName(), EncryptionUtils.associatedData(user.getId(), UserModel.LAST_NAME)));
         update.executeUpdate();
         em.remove(eue);
+        BlindIndex.remove(em, user.getId(), BlindIndex.USER_FIELDS);
+        EncryptedEntityLookup.of(em.unwrap(SharedSessionContractImplementor.class)).evict(user.getId());
     }
 
     /**
@@ -341,10 +409,10 @@ public final class LogicUtils {
      */
     public static void decryptUserAttributeEntity(EntityManager em, RealmModel realm, EncryptedUserAttributeEntity euae) {
         UserAttributeEntity uae = euae.getAttribute();
-        if (!uae.getValue().equalsIgnoreCase(EncryptionUtils.decryptValue(euae.getValue()))) {
+        String value = EncryptionUtils.decryptValue(euae.getValue(), EncryptionUtils.associatedData(euae.getUser().getId(), euae.getName()));
+        if (!uae.getValue().equalsIgnoreCase(value)) {
             throw new DecryptionFailureException(realm.getId(), euae.getUser().getId(), euae.getName());
         }
-        String value = EncryptionUtils.decryptValue(euae.getValue());
         if (value.length() > 255) {
             Query update = em.createQuery("UPDATE UserAttributeEntity u SET u.value = null, u.longValue = :longValue, u.longValueHash = :longValueHash, u.longValueHashLowerCase = :longValueHashLowerCase WHERE u.id = :id");
             update.setParameter("id", uae.getId());
@@ -359,6 +427,113 @@ public final class LogicUtils {
             update.executeUpdate();
         }
         em.remove(euae);
+        BlindIndex.remove(em, euae.getUser().getId(), List.of(euae.getName()));
+        EncryptedEntityLookup.of(em.unwrap(SharedSessionContractImplementor.class)).evict(euae.getUser().getId());
+    }
+
+    /**
+     * Counts the user entities of a realm
+     *
+     * @param em EntityManager
+     * @param realmId The ID of the realm
+     * @return Number of users
+     */
+    static long countUserEntities(EntityManager em, String realmId) {
+        return em.createQuery("SELECT COUNT(u) FROM UserEntity u WHERE u.realmId = :realmId", Long.class)
+                .setParameter("realmId", realmId)
+                .getSingleResult();
+    }
+
+    /**
+     * Walks the IDs of the users of a realm in ascending order, chunk by chunk,
+     * using keyset pagination. After each chunk has been processed, pending
+     * changes are flushed and the entities of the chunk are detached.
+     *
+     * @param em EntityManager
+     * @param realmId The ID of the realm
+     * @param skipServiceAccounts True to exclude service account users
+     * @param processor Processes a chunk of user IDs
+     */
+    static void forEachUserIdChunk(EntityManager em, String realmId, boolean skipServiceAccounts, Consumer<List<String>> processor) {
+        String lastId = "";
+        List<String> ids;
+        while (!(ids = getUserIdChunk(em, realmId, lastId, skipServiceAccounts, MIGRATION_CHUNK_SIZE)).isEmpty()) {
+            processor.accept(ids);
+            em.flush();
+            detachUserEntities(em, new HashSet<>(ids));
+            lastId = ids.get(ids.size() - 1);
+        }
+    }
+
+    /**
+     * Gets the next chunk of the IDs of the users of a realm in ascending
+     * order
+     *
+     * @param em EntityManager
+     * @param realmId The ID of the realm
+     * @param lastId The last ID of the previous chunk, or empty string for the
+     * first chunk
+     * @param skipServiceAccounts True to exclude service account users
+     * @param size Maximum number of IDs
+     * @return The IDs, empty if there are no more users
+     */
+    public static List<String> getUserIdChunk(EntityManager em, String realmId, String lastId, boolean skipServiceAccounts, int size) {
+        String query = "SELECT u.id FROM UserEntity u WHERE u.realmId = :realmId AND u.id > :lastId"
+                + (skipServiceAccounts ? " AND u.serviceAccountClientLink IS NULL" : "")
+                + " ORDER BY u.id";
+        return em.createQuery(query, String.class)
+                .setParameter("realmId", realmId)
+                .setParameter("lastId", lastId)
+                .setMaxResults(size)
+                .getResultList();
+    }
+
+    /**
+     * Detaches the user entities with the specific IDs together with their
+     * attributes and encrypted rows from the persistence context, leaving any
+     * other managed entities alone.
+     *
+     * @param em EntityManager
+     * @param userIds The user IDs
+     */
+    static void detachUserEntities(EntityManager em, Set<String> userIds) {
+        List<Object> entities = new ArrayList<>();
+        for (Map.Entry<Object, EntityEntry> entry : em.unwrap(SharedSessionContractImplementor.class).getPersistenceContextInternal().reentrantSafeEntityEntries()) {
+            Object entity = entry.getKey();
+            String userId = null;
+            if (entity instanceof UserEntity ue) {
+                userId = ue.getId();
+            } else if (entity instanceof UserAttributeEntity uae) {
+                userId = uae.getUser().getId();
+            } else if (entity instanceof EncryptedUserEntity eue) {
+                userId = eue.getUser().getId();
+            } else if (entity instanceof EncryptedUserAttributeEntity euae) {
+                userId = euae.getUser().getId();
+            }
+            if (userId != null && userIds.contains(userId)) {
+                entities.add(entity);
+            }
+        }
+        entities.forEach(em::detach);
+    }
+
+    /**
+     * Runs a query inside a prefetch window of EncryptedEntityLookup so that
+     * the encrypted rows of the loaded users are fetched together.
+     *
+     * @param <T> The result type
+     * @param em EntityManager
+     * @param query The query to run
+     * @return The query result
+     */
+    static <T> T prefetched(EntityManager em, Supplier<T> query) {
+        EncryptedEntityLookup lookup = EncryptedEntityLookup.of(em.unwrap(SharedSessionContractImplementor.class));
+        lookup.beginPrefetch();
+        try {
+            return query.get();
+        } finally {
+            lookup.endPrefetch();
+        }
     }
 
     /**
@@ -371,6 +546,15 @@ public final class LogicUtils {
         return raw != null ? DigestUtils.sha1Hex(raw.trim().toLowerCase()) : null;
     }
 
+    /**
+     * Gets the node-wide user lookup cache.
+     *
+     * @return UserLookupCache
+     */
+    public static UserLookupCache getUserLookupCache() {
+        return USER_LOOKUP_CACHE;
+    }
+
     public static boolean isHash(String value) {
         return value.length() == 40 && value.matches("^[0-9a-fA-F]+$");
     }
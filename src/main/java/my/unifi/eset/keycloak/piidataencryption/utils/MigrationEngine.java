@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2025 Muhammad Lukman Nasaruddin <lukman.nasaruddin@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package my.unifi.eset.keycloak.piidataencryption.utils;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.FlushModeType;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * Encrypts/decrypts all users of a realm using a pool of worker threads.
+ *
+ * The user ID space of the realm is walked in ascending order and cut into
+ * ranges of MIGRATION_CHUNK_SIZE IDs, which are handed to the workers as they
+ * are produced. Each range is processed by a worker in its own
+ * KeycloakSession and transaction, so a failing range is rolled back on its
+ * own without affecting the others. At most twice as many ranges as there are
+ * workers are in flight at any time. The checkpointed watermark never moves
+ * past a failed range, so a resumed run processes it again.
+ *
+ * @author MLukman (https://github.com/MLukman)
+ */
+public class MigrationEngine {
+
+    static final Logger logger = Logger.getLogger(MigrationEngine.class);
+
+    public enum Mode {
+        ENCRYPT, DECRYPT
+    }
+
+    private final KeycloakSessionFactory ksf;
+    private final int workers;
+    private final int chunkSize;
+
+    /**
+     * Creates an engine with the number of workers configured via the
+     * KC_PII_MIGRATION_WORKERS environment variable, defaulting to the number
+     * of available processors up to 4.
+     *
+     * @param ksf KeycloakSessionFactory
+     */
+    public MigrationEngine(KeycloakSessionFactory ksf) {
+        this(ksf, ConfigUtils.getInt("KC_PII_MIGRATION_WORKERS", Math.min(4, Runtime.getRuntime().availableProcessors())), LogicUtils.MIGRATION_CHUNK_SIZE);
+    }
+
+    /**
+     * @param ksf KeycloakSessionFactory
+     * @param workers Maximum number of ranges processed concurrently
+     * @param chunkSize Number of users per range
+     */
+    public MigrationEngine(KeycloakSessionFactory ksf, int workers, int chunkSize) {
+        this.ksf = ksf;
+        this.workers = Math.max(1, workers);
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+
+    /**
+     * Encrypts/decrypts all users of a realm and waits until done.
+     *
+     * @param realmId The ID of the realm
+     * @param mode Whether to encrypt or decrypt
+     * @return The report of the run
+     */
+    public Report run(String realmId, Mode mode) {
+        return run(realmId, mode, "", null);
+    }
+
+    /**
+     * Encrypts/decrypts the users of a realm whose IDs are greater than the
+     * passed ID and waits until done. The checkpoint, if any, is notified
+     * every time all ranges up to a particular user ID have been processed,
+     * and can stop the run by returning false.
+     *
+     * @param realmId The ID of the realm
+     * @param mode Whether to encrypt or decrypt
+     * @param afterId Only process users with IDs greater than this, or empty
+     * string for all users
+     * @param checkpoint The Checkpoint, or null
+     * @return The report of the run
+     */
+    public Report run(String realmId, Mode mode, String afterId, Checkpoint checkpoint) {
+        Report report = new Report(realmId, mode);
+        logger.infof("Event: REALM_USERS_%s_STARTED, Realm: %s, Workers: %d, After: %s", mode, realmId, workers, afterId);
+        ExecutorService executor = Executors.newFixedThreadPool(workers, (r) -> {
+            Thread thread = new Thread(r, "pii-migration-" + realmId + "-" + report.workerSequence.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        Semaphore pending = new Semaphore(workers * 2);
+        try {
+            String lastId = afterId;
+            List<String> ids;
+            while (!report.isCancelled() && !(ids = nextChunk(realmId, mode, lastId)).isEmpty()) {
+                pending.acquire();
+                List<String> range = ids;
+                Object ticket = report.submitted(range);
+                executor.execute(() -> {
+                    try {
+                        report.completed(ticket, process(realmId, mode, range, report), checkpoint);
+                    } finally {
+                        pending.release();
+                    }
+                });
+                lastId = ids.get(ids.size() - 1);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            report.cancel();
+            logger.warnf("Event: REALM_USERS_%s_INTERRUPTED, Realm: %s", mode, realmId);
+        } finally {
+            executor.shutdown();
+            try {
+                while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    logger.infof("Event: REALM_USERS_%s_IN_PROGRESS, Realm: %s, Users: %d", mode, realmId, report.getUsers());
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        report.finish();
+        report.log();
+        return report;
+    }
+
+    private List<String> nextChunk(String realmId, Mode mode, String lastId) {
+        List<List<String>> result = new ArrayList<>(1);
+        KeycloakModelUtils.runJobInTransaction(ksf, (session) -> {
+            EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+            result.add(LogicUtils.getUserIdChunk(em, realmId, lastId, mode == Mode.ENCRYPT, chunkSize));
+        });
+        return result.get(0);
+    }
+
+    private boolean process(String realmId, Mode mode, List<String> ids, Report report) {
+        long start = System.nanoTime();
+        try {
+            KeycloakModelUtils.runJobInTransaction(ksf, (session) -> processInSession(session, realmId, mode, ids));
+            report.worker().record(ids.size(), System.nanoTime() - start);
+            return true;
+        } catch (RuntimeException ex) {
+            report.worker().fail(System.nanoTime() - start);
+            logger.errorf(ex, "Event: REALM_USERS_%s_RANGE_FAILED, Realm: %s, Range: %s - %s", mode, realmId, ids.get(0), ids.get(ids.size() - 1));
+            return false;
+        }
+    }
+
+    /**
+     * Processes a single range of user IDs within the passed session.
+     *
+     * @param session The KeycloakSession of the worker
+     * @param realmId The ID of the realm
+     * @param mode Whether to encrypt or decrypt
+     * @param ids The user IDs
+     */
+    protected void processInSession(KeycloakSession session, String realmId, Mode mode, List<String> ids) {
+        RealmModel realm = session.realms().getRealm(realmId);
+        session.getContext().setRealm(realm);
+        EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        em.setFlushMode(FlushModeType.COMMIT);
+        if (mode == Mode.ENCRYPT) {
+            LogicUtils.encryptUserEntities(session, em, realm, ids);
+        } else {
+            LogicUtils.decryptUserEntities(em, realm, ids);
+        }
+        em.flush();
+    }
+
+    /**
+     * Receives the progress of a run.
+     */
+    @FunctionalInterface
+    public interface Checkpoint {
+
+        /**
+         * Called when all users up to and including a particular ID have
+         * been processed. Calls are made one at a time in ascending order of
+         * the ID.
+         *
+         * @param lastUserId The ID of the last processed user
+         * @param report The report of the run so far
+         * @return true to continue, false to stop the run
+         */
+        boolean reached(String lastUserId, Report report);
+    }
+
+    /**
+     * Aggregated statistics of a run, with a breakdown per worker thread.
+     */
+    public static class Report {
+
+        private final String realmId;
+        private final Mode mode;
+        private final long startedAt = System.nanoTime();
+        private long finishedAt;
+        private final AtomicInteger workerSequence = new AtomicInteger();
+        private final Map<String, WorkerStats> workers = new ConcurrentHashMap<>();
+        private final Deque<Range> ranges = new ArrayDeque<>();
+        private volatile long checkpointedUsers = 0;
+        private volatile boolean cancelled = false;
+
+        Report(String realmId, Mode mode) {
+            this.realmId = realmId;
+            this.mode = mode;
+        }
+
+        synchronized Object submitted(List<String> ids) {
+            Range range = new Range(ids.get(ids.size() - 1), ids.size());
+            ranges.add(range);
+            return range;
+        }
+
+        /**
+         * Marks a range as processed and notifies the checkpoint if all
+         * ranges before it have been processed successfully too. Once a range
+         * has failed, the watermark stays before it for the rest of the run.
+         */
+        synchronized void completed(Object ticket, boolean succeeded, Checkpoint checkpoint) {
+            Range range = (Range) ticket;
+            range.done = true;
+            range.failed = !succeeded;
+            String watermark = null;
+            while (!ranges.isEmpty() && ranges.peek().done && !ranges.peek().failed) {
+                Range passed = ranges.poll();
+                watermark = passed.lastId;
+                checkpointedUsers += passed.size;
+            }
+            if (watermark != null && checkpoint != null && !cancelled) {
+                try {
+                    if (!checkpoint.reached(watermark, this)) {
+                        cancel();
+                    }
+                } catch (RuntimeException ex) {
+                    logger.errorf(ex, "Event: REALM_USERS_%s_CHECKPOINT_FAILED, Realm: %s", mode, realmId);
+                    cancel();
+                }
+            }
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        WorkerStats worker() {
+            return workers.computeIfAbsent(Thread.currentThread().getName(), (n) -> new WorkerStats(n));
+        }
+
+        void finish() {
+            finishedAt = System.nanoTime();
+        }
+
+        public String getRealmId() {
+            return realmId;
+        }
+
+        public Mode getMode() {
+            return mode;
+        }
+
+        public long getUsers() {
+            return workers.values().stream().mapToLong((w) -> w.users.get()).sum();
+        }
+
+        /**
+         * Gets the number of users up to the last watermark, i.e. excluding
+         * the users of the ranges after it, which are processed again when
+         * the run is resumed from the watermark.
+         *
+         * @return The number of users
+         */
+        public long getCheckpointedUsers() {
+            return checkpointedUsers;
+        }
+
+        public long getFailedRanges() {
+            return workers.values().stream().mapToLong((w) -> w.failedRanges.get()).sum();
+        }
+
+        public long getDurationMillis() {
+            return TimeUnit.NANOSECONDS.toMillis((finishedAt > 0 ? finishedAt : System.nanoTime()) - startedAt);
+        }
+
+        public Collection<WorkerStats> getWorkers() {
+            return workers.values();
+        }
+
+        void log() {
+            long millis = getDurationMillis();
+            logger.infof("Event: REALM_USERS_%s_COMPLETED, Realm: %s, Users: %d, Failed Ranges: %d, Duration: %dms, Throughput: %.1f users/s",
+                    mode, realmId, getUsers(), getFailedRanges(), millis, getUsers() * 1000.0 / Math.max(1, millis));
+            for (WorkerStats w : workers.values()) {
+                logger.debugf("Event: REALM_USERS_%s_WORKER, Realm: %s, Worker: %s, Users: %d, Ranges: %d, Failed Ranges: %d, Throughput: %.1f users/s",
+                        mode, realmId, w.name, w.users.get(), w.ranges.get(), w.failedRanges.get(), w.getThroughput());
+            }
+        }
+    }
+
+    private static class Range {
+
+        final String lastId;
+        final int size;
+        boolean done = false;
+        boolean failed = false;
+
+        Range(String lastId, int size) {
+            this.lastId = lastId;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Statistics of a single worker thread.
+     */
+    public static class WorkerStats {
+
+        private final String name;
+        private final AtomicLong users = new AtomicLong();
+        private final AtomicLong ranges = new AtomicLong();
+        private final AtomicLong failedRanges = new AtomicLong();
+        private final AtomicLong busyNanos = new AtomicLong();
+
+        WorkerStats(String name) {
+            this.name = name;
+        }
+
+        void record(int processed, long nanos) {
+            users.addAndGet(processed);
+            ranges.incrementAndGet();
+            busyNanos.addAndGet(nanos);
+        }
+
+        void fail(long nanos) {
+            failedRanges.incrementAndGet();
+            busyNanos.addAndGet(nanos);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getUsers() {
+            return users.get();
+        }
+
+        /**
+         * @return Number of users processed per second of busy time
+         */
+        public double getThroughput() {
+            return users.get() * 1_000_000_000.0 / Math.max(1, busyNanos.get());
+        }
+    }
+
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2025 Muhammad Lukman Nasaruddin <lukman.nasaruddin@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package my.unifi.eset.keycloak.piidataencryption.utils;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.Query;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import my.unifi.eset.keycloak.piidataencryption.jpa.UserEncryptionJobEntity;
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.PostMigrationEvent;
+import org.keycloak.timer.ScheduledTask;
+import org.keycloak.timer.TimerProvider;
+
+/**
+ * Runs the encryption/decryption of all users of a realm as a background job
+ * persisted in the USER_ENCRYPTION_JOB table.
+ *
+ * Every node periodically looks for jobs that are pending, or running but
+ * whose owner has stopped updating the heartbeat (e.g. it crashed or was
+ * restarted), claims them and runs them using MigrationEngine starting after
+ * the last checkpointed user ID. A run with failed ranges, or that stops with
+ * an error, ends the job as failed, with the checkpoint before the first
+ * failed range, and the job is resumed from there once the lease has passed.
+ * The processed users of a job are only counted up to its checkpoint, since
+ * the users after it are processed again when the job is resumed. The state of
+ * the job is also reported in the realm attribute users.encrypt.job.state, and
+ * the number of processed users in users.encrypt.job.users once completed.
+ *
+ * @author MLukman (https://github.com/MLukman)
+ */
+public class MigrationJobRunner implements ScheduledTask {
+
+    static final Logger logger = Logger.getLogger(MigrationJobRunner.class);
+
+    public static final String TASK_NAME = "pii-data-encryption-migration-jobs";
+    public static final String REALM_ATTRIBUTE_STATE = "users.encrypt.job.state";
+    public static final String REALM_ATTRIBUTE_USERS = "users.encrypt.job.users";
+
+    /**
+     * Number of milliseconds between checks for jobs to run, configured in
+     * seconds via KC_PII_JOB_INTERVAL.
+     */
+    static final long INTERVAL_MILLIS = ConfigUtils.getLong("KC_PII_JOB_INTERVAL", 15) * 1000;
+
+    /**
+     * Number of milliseconds without heartbeat after which a running job is
+     * considered abandoned by its owner, configured in seconds via
+     * KC_PII_JOB_LEASE.
+     */
+    static final long LEASE_MILLIS = ConfigUtils.getLong("KC_PII_JOB_LEASE", 300) * 1000;
+
+    /**
+     * Identifies this node as the owner of the jobs it runs.
+     */
+    static final String NODE = KeycloakModelUtils.generateId();
+
+    private static final Set<String> RUNNING = ConcurrentHashMap.newKeySet();
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool((r) -> {
+        Thread thread = new Thread(r, "pii-migration-job");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final KeycloakSessionFactory ksf;
+
+    public MigrationJobRunner(KeycloakSessionFactory ksf) {
+        this.ksf = ksf;
+    }
+
+    /**
+     * Schedules the periodic checks for jobs once the database has been
+     * migrated.
+     *
+     * @param ksf KeycloakSessionFactory
+     */
+    public static void register(KeycloakSessionFactory ksf) {
+        ksf.register((event) -> {
+            if (event instanceof PostMigrationEvent) {
+                KeycloakModelUtils.runJobInTransaction(ksf, (session) -> {
+                    session.getProvider(TimerProvider.class).scheduleTask(new MigrationJobRunner(ksf), INTERVAL_MILLIS, TASK_NAME);
+                });
+            }
+        });
+    }
+
+    /**
+     * Enqueues the encryption/decryption of all users of a realm, replacing
+     * any existing job of the realm. The job is saved as part of the current
+     * transaction and is picked up right after the transaction commits.
+     *
+     * @param session KeycloakSession
+     * @param realm RealmModel
+     * @param mode Whether to encrypt or decrypt
+     */
+    public static void enqueue(KeycloakSession session, RealmModel realm, MigrationEngine.Mode mode) {
+        EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        UserEncryptionJobEntity job = em.find(UserEncryptionJobEntity.class, realm.getId());
+        if (job == null) {
+            job = new UserEncryptionJobEntity(realm.getId());
+            em.persist(job);
+        }
+        job.setMode(mode.name());
+        job.setState(UserEncryptionJobEntity.STATE_PENDING);
+        job.setGeneration(job.getGeneration() + 1);
+        job.setLastUserId("");
+        job.setProcessedUsers(0);
+        job.setFailedRanges(0);
+        job.setOwner(null);
+        job.setHeartbeat(0);
+        job.setUpdated(System.currentTimeMillis());
+        realm.setAttribute(REALM_ATTRIBUTE_STATE, UserEncryptionJobEntity.STATE_PENDING);
+        realm.setAttribute(REALM_ATTRIBUTE_USERS, 0);
+        logger.debugf("Event: MIGRATION_JOB_ENQUEUED, Realm: %s, Mode: %s, Generation: %d", realm.getId(), mode, job.getGeneration());
+        KeycloakSessionFactory ksf = session.getKeycloakSessionFactory();
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                // no need to wait for the next scheduled check
+                EXECUTOR.execute(() -> KeycloakModelUtils.runJobInTransaction(ksf, new MigrationJobRunner(ksf)));
+            }
+
+            @Override
+            protected void rollbackImpl() {
+            }
+        });
+    }
+
+    /**
+     * Claims & starts the jobs that are waiting to be run, and keeps the
+     * heartbeat of the jobs being run by this node.
+     *
+     * @param session KeycloakSession
+     */
+    @Override
+    public void run(KeycloakSession session) {
+        EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        long now = System.currentTimeMillis();
+        List<UserEncryptionJobEntity> jobs = em.createQuery("SELECT j FROM UserEncryptionJobEntity j WHERE j.state <> :completed", UserEncryptionJobEntity.class)
+                .setParameter("completed", UserEncryptionJobEntity.STATE_COMPLETED)
+                .getResultList();
+        for (UserEncryptionJobEntity job : jobs) {
+            if (session.realms().getRealm(job.getRealmId()) == null) {
+                em.remove(job); // realm has been removed
+                continue;
+            }
+            boolean runningHere = RUNNING.contains(job.getRealmId());
+            if (NODE.equals(job.getOwner()) && runningHere) {
+                em.createQuery("UPDATE UserEncryptionJobEntity j SET j.heartbeat = :now WHERE j.realmId = :realmId AND j.generation = :generation AND j.owner = :node")
+                        .setParameter("now", now)
+                        .setParameter("realmId", job.getRealmId())
+                        .setParameter("generation", job.getGeneration())
+                        .setParameter("node", NODE)
+                        .executeUpdate();
+                continue;
+            }
+            if (isClaimable(job, now, runningHere) && claim(job.getRealmId(), job.getGeneration(), now)) {
+                start(job.getRealmId(), job.getGeneration(), MigrationEngine.Mode.valueOf(job.getMode()), job.getLastUserId(), job.getProcessedUsers());
+            }
+        }
+    }
+
+    /**
+     * Checks if a job should be claimed by this node: it is not being run by
+     * another node, has not failed within the lease and is not being run by
+     * this node. A job still owned by this node but no longer running here,
+     * e.g. because it could not be marked as failed, is claimed again.
+     *
+     * @param job The job
+     * @param now The current time in milliseconds
+     * @param runningHere true if this node is running a job of the realm
+     * @return true if claimable
+     */
+    static boolean isClaimable(UserEncryptionJobEntity job, long now, boolean runningHere) {
+        if (runningHere) {
+            return false; // being run or the previous generation is still winding down on this node
+        }
+        if (job.getOwner() != null && !NODE.equals(job.getOwner()) && job.getHeartbeat() >= now - LEASE_MILLIS) {
+            return false; // being run by another node
+        }
+        // failed jobs are retried once the lease has passed
+        return !UserEncryptionJobEntity.STATE_FAILED.equals(job.getState()) || job.getUpdated() < now - LEASE_MILLIS;
+    }
+
+    /**
+     * Atomically takes ownership of a job, unless another node has done so
+     * first.
+     */
+    private boolean claim(String realmId, int generation, long now) {
+        return KeycloakModelUtils.runJobInTransactionWithResult(ksf, (session) -> {
+            EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+            int claimed = em.createQuery("UPDATE UserEncryptionJobEntity j SET j.owner = :node, j.heartbeat = :now, j.state = :running, j.updated = :now"
+                    + " WHERE j.realmId = :realmId AND j.generation = :generation AND (j.owner IS NULL OR j.owner = :node OR j.heartbeat < :stale)")
+                    .setParameter("node", NODE)
+                    .setParameter("now", now)
+                    .setParameter("running", UserEncryptionJobEntity.STATE_RUNNING)
+                    .setParameter("realmId", realmId)
+                    .setParameter("generation", generation)
+                    .setParameter("stale", now - LEASE_MILLIS)
+                    .executeUpdate();
+            if (claimed == 1) {
+                setRealmAttribute(session, realmId, REALM_ATTRIBUTE_STATE, UserEncryptionJobEntity.STATE_RUNNING);
+            }
+            return claimed == 1;
+        });
+    }
+
+    private void start(String realmId, int generation, MigrationEngine.Mode mode, String lastUserId, long processedUsers) {
+        RUNNING.add(realmId);
+        logger.infof("Event: MIGRATION_JOB_STARTED, Realm: %s, Mode: %s, Generation: %d, After: %s", realmId, mode, generation, lastUserId);
+        EXECUTOR.execute(() -> {
+            try {
+                MigrationEngine.Report report = new MigrationEngine(ksf).run(realmId, mode, lastUserId != null ? lastUserId : "",
+                        (watermark, progress) -> update(realmId, generation, watermark, processedUsers + progress.getCheckpointedUsers(), progress.getFailedRanges(), UserEncryptionJobEntity.STATE_RUNNING));
+                if (!report.isCancelled()) {
+                    // ranges after the watermark are processed again when the job is resumed, so failed ranges are per run
+                    update(realmId, generation, null, processedUsers + report.getCheckpointedUsers(), report.getFailedRanges(),
+                            report.getFailedRanges() > 0 ? UserEncryptionJobEntity.STATE_FAILED : UserEncryptionJobEntity.STATE_COMPLETED);
+                }
+            } catch (RuntimeException ex) {
+                logger.errorf(ex, "Event: MIGRATION_JOB_FAILED, Realm: %s, Mode: %s", realmId, mode);
+                fail(realmId, generation);
+            } finally {
+                RUNNING.remove(realmId);
+            }
+        });
+    }
+
+    /**
+     * Saves the progress of a job if it is still owned by this node and has
+     * not been replaced by a newer job. The ownership is released once the
+     * job is no longer running.
+     *
+     * @return true if the job is still current
+     */
+    private boolean update(String realmId, int generation, String watermark, long processedUsers, long failedRanges, String state) {
+        boolean running = UserEncryptionJobEntity.STATE_RUNNING.equals(state);
+        return KeycloakModelUtils.runJobInTransactionWithResult(ksf, (session) -> {
+            EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+            long now = System.currentTimeMillis();
+            Query update = em.createQuery("UPDATE UserEncryptionJobEntity j SET "
+                    + (watermark != null ? "j.lastUserId = :watermark, " : "")
+                    + "j.processedUsers = :processedUsers, j.failedRanges = :failedRanges, j.heartbeat = :now, j.updated = :now, j.state = :state, j.owner = :owner"
+                    + " WHERE j.realmId = :realmId AND j.generation = :generation AND j.owner = :node");
+            if (watermark != null) {
+                update.setParameter("watermark", watermark);
+            }
+            int updated = update
+                    .setParameter("processedUsers", processedUsers)
+                    .setParameter("failedRanges", failedRanges)
+                    .setParameter("now", now)
+                    .setParameter("state", state)
+                    .setParameter("owner", running ? NODE : null)
+                    .setParameter("realmId", realmId)
+                    .setParameter("generation", generation)
+                    .setParameter("node", NODE)
+                    .executeUpdate();
+            if (updated == 0) {
+                logger.infof("Event: MIGRATION_JOB_SUPERSEDED, Realm: %s, Generation: %d", realmId, generation);
+                return false;
+            }
+            if (UserEncryptionJobEntity.STATE_COMPLETED.equals(state)) {
+                // reported only on completion to avoid invalidating the realm cache on every checkpoint
+                setRealmAttribute(session, realmId, REALM_ATTRIBUTE_USERS, String.valueOf(processedUsers));
+                setRealmAttribute(session, realmId, REALM_ATTRIBUTE_STATE, UserEncryptionJobEntity.STATE_COMPLETED);
+                logger.infof("Event: MIGRATION_JOB_COMPLETED, Realm: %s, Users: %d", realmId, processedUsers);
+            } else if (UserEncryptionJobEntity.STATE_FAILED.equals(state)) {
+                setRealmAttribute(session, realmId, REALM_ATTRIBUTE_STATE, UserEncryptionJobEntity.STATE_FAILED);
+                logger.warnf("Event: MIGRATION_JOB_FAILED_RANGES, Realm: %s, Users: %d, Failed Ranges: %d", realmId, processedUsers, failedRanges);
+            } else {
+                logger.debugf("Event: MIGRATION_JOB_CHECKPOINT, Realm: %s, Last User: %s, Users: %d", realmId, watermark, processedUsers);
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Ends a job that stopped with an error as failed, keeping its checkpoint,
+     * so that it is resumed once the lease has passed. If even that fails, the
+     * job stays owned by this node and is claimed again by the next check.
+     */
+    private void fail(String realmId, int generation) {
+        try {
+            KeycloakModelUtils.runJobInTransaction(ksf, (session) -> {
+                EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+                long now = System.currentTimeMillis();
+                int updated = em.createQuery("UPDATE UserEncryptionJobEntity j SET j.state = :failed, j.owner = NULL, j.updated = :now"
+                        + " WHERE j.realmId = :realmId AND j.generation = :generation AND j.owner = :node")
+                        .setParameter("failed", UserEncryptionJobEntity.STATE_FAILED)
+                        .setParameter("now", now)
+                        .setParameter("realmId", realmId)
+                        .setParameter("generation", generation)
+                        .setParameter("node", NODE)
+                        .executeUpdate();
+                if (updated == 1) {
+                    setRealmAttribute(session, realmId, REALM_ATTRIBUTE_STATE, UserEncryptionJobEntity.STATE_FAILED);
+                }
+            });
+        } catch (RuntimeException ex) {
+            logger.errorf(ex, "Event: MIGRATION_JOB_STATE_NOT_SAVED, Realm: %s", realmId);
+        }
+    }
+
+    private static void setRealmAttribute(KeycloakSession session, String realmId, String name, String value) {
+        RealmModel realm = session.realms().getRealm(realmId);
+        if (realm != null) {
+            realm.setAttribute(name, value);
+        }
+    }
+
+    @Override
+    public String getTaskName() {
+        return TASK_NAME;
+    }
+
+}
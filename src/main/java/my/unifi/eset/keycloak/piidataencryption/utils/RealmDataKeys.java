@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2025 Muhammad Lukman Nasaruddin <lukman.nasaruddin@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package my.unifi.eset.keycloak.piidataencryption.utils;
+
+import jakarta.persistence.EntityManager;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.spec.SecretKeySpec;
+import my.unifi.eset.keycloak.piidataencryption.jpa.RealmDataKeyEntity;
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.PostMigrationEvent;
+import org.keycloak.timer.TimerProvider;
+
+/**
+ * Envelope encryption: every realm has its own data encryption keys, stored in
+ * the REALM_DATA_KEY table wrapped (i.e. encrypted) using the primary key of
+ * the KeyRing, and the values of the users of a realm are encrypted using the
+ * newest data key of the realm. This way realms are cryptographically isolated
+ * from each other, the data keys of a single realm can be rotated without
+ * touching other realms, and rotating the primary key only needs the data
+ * keys to be wrapped again (see KeyRotationTask).
+ *
+ * Data keys are created ahead of time, i.e. when a realm is created, when the
+ * server starts and by KeyRotationTask, never while encrypting a value. Each
+ * data key of a realm has a generation that is unique within the realm, so
+ * nodes racing to create the same data key cannot both succeed. Every node
+ * loads the newest data key of each realm at startup & every
+ * KC_PII_REALM_KEY_CACHE_TTL seconds, so encrypting a value never queries the
+ * database. Unwrapped data keys are also kept in a bounded in-memory cache by
+ * key ID for decryption.
+ *
+ * @author MLukman (https://github.com/MLukman)
+ */
+public final class RealmDataKeys {
+
+    static final Logger logger = Logger.getLogger(RealmDataKeys.class);
+
+    /**
+     * Whether values are encrypted using data keys, configured via
+     * KC_PII_REALM_KEYS. Values encrypted using the primary key are still
+     * decrypted either way.
+     */
+    static final boolean ENABLED = ConfigUtils.getBoolean("KC_PII_REALM_KEYS", true);
+
+    /**
+     * Maximum number of data keys kept in memory, configured via
+     * KC_PII_REALM_KEY_CACHE_SIZE.
+     */
+    static final int CACHE_SIZE = Math.max(1, ConfigUtils.getInt("KC_PII_REALM_KEY_CACHE_SIZE", 1000));
+
+    /**
+     * Number of seconds between the loads of the newest data key of each realm
+     * by each node, and before an unknown key ID is looked up again,
+     * configured via KC_PII_REALM_KEY_CACHE_TTL.
+     */
+    static final long CACHE_TTL_SECONDS = Math.max(1, ConfigUtils.getLong("KC_PII_REALM_KEY_CACHE_TTL", 300));
+
+    /**
+     * The name of the node-local task that loads the newest data keys.
+     */
+    public static final String TASK_NAME = "pii-data-encryption-realm-data-keys";
+
+    /**
+     * Number of milliseconds after which KeyRotationTask rotates the data key
+     * of a realm, configured in days via KC_PII_REALM_KEY_MAX_AGE. 0 disables
+     * the rotation.
+     */
+    static final long MAX_AGE_MILLIS = ConfigUtils.getLong("KC_PII_REALM_KEY_MAX_AGE", 0) * 86_400_000L;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final Map<String, CachedKey> KEYS_BY_ID = new ConcurrentHashMap<>();
+    private static final Map<String, KeyRing.Key> KEYS_BY_REALM = new ConcurrentHashMap<>();
+    private static volatile KeycloakSessionFactory ksf = null;
+
+    /**
+     * Enables the data keys, unless disabled via KC_PII_REALM_KEYS, creates
+     * the first data key of realms when they are created and deletes their
+     * data keys when they are removed. Once the database has been migrated,
+     * the realms without data keys get their first data key and the newest
+     * data keys are loaded & periodically reloaded.
+     *
+     * @param ksf KeycloakSessionFactory
+     */
+    public static void register(KeycloakSessionFactory ksf) {
+        if (!ENABLED) {
+            return;
+        }
+        RealmDataKeys.ksf = ksf;
+        ksf.register((event) -> {
+            if (event instanceof PostMigrationEvent) {
+                try {
+                    KeycloakModelUtils.runJobInTransaction(ksf, (session) -> createMissing(em(session)));
+                } catch (RuntimeException ex) {
+                    // most likely another node has just created them
+                    logger.warnf("Event: DATA_KEY_CREATION_FAILED, Error: %s", ex.getMessage());
+                }
+                KeycloakModelUtils.runJobInTransaction(ksf, (session) -> {
+                    loadActiveKeys(session);
+                    session.getProvider(TimerProvider.class).scheduleTask(RealmDataKeys::loadActiveKeys, CACHE_TTL_SECONDS * 1000, TASK_NAME);
+                });
+            } else if (event instanceof RealmModel.RealmPostCreateEvent rc && EncryptionUtils.WRITE_SCHEME != null) {
+                RealmDataKeyEntity entity = create(em(rc.getKeycloakSession()), rc.getCreatedRealm().getId());
+                KeyRing.Key key = unwrap(entity);
+                rc.getKeycloakSession().getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+                    @Override
+                    protected void commitImpl() {
+                        // only once stored, otherwise values could be encrypted using a key that is lost
+                        KEYS_BY_REALM.put(entity.getRealmId(), key);
+                        put(KEYS_BY_ID, key.id, key);
+                    }
+
+                    @Override
+                    protected void rollbackImpl() {
+                    }
+                });
+            } else if (event instanceof RealmModel.RealmRemovedEvent rr) {
+                String realmId = rr.getRealm().getId();
+                em(rr.getKeycloakSession()).createQuery("DELETE FROM RealmDataKeyEntity k WHERE k.realmId = :realmId")
+                        .setParameter("realmId", realmId)
+                        .executeUpdate();
+                KEYS_BY_REALM.remove(realmId);
+            }
+        });
+    }
+
+    /**
+     * Gets the data key that encrypts the values of a realm, as of the last
+     * time the newest data keys were loaded by this node. It never queries the
+     * database since it is called while flushing.
+     *
+     * @param realmId The realm ID
+     * @return The data key, or null if data keys are not enabled or the realm
+     * has no loaded data key yet, in which case the primary key is used instead
+     */
+    static KeyRing.Key getActiveKey(String realmId) {
+        if (ksf == null || realmId == null || EncryptionUtils.WRITE_SCHEME == null) {
+            return null;
+        }
+        return KEYS_BY_REALM.get(realmId);
+    }
+
+    /**
+     * Gets a data key by its ID.
+     *
+     * @param id The key ID
+     * @return The data key, or null if unknown or data keys are not enabled
+     */
+    static KeyRing.Key getKey(String id) {
+        KeycloakSessionFactory factory = ksf;
+        if (factory == null) {
+            return null;
+        }
+        CachedKey cached = KEYS_BY_ID.get(id);
+        // data keys never change, only unknown IDs are looked up again
+        if (cached != null && (cached.key != null || cached.isFresh())) {
+            return cached.key;
+        }
+        KeyRing.Key key;
+        try {
+            key = KeycloakModelUtils.runJobInTransactionWithResult(factory, (session) -> {
+                RealmDataKeyEntity entity = em(session).find(RealmDataKeyEntity.class, id);
+                return entity != null ? unwrap(entity) : null;
+            });
+        } catch (RuntimeException ex) {
+            logger.errorf(ex, "Event: DATA_KEY_UNAVAILABLE, Key: %s", id);
+            key = null;
+        }
+        put(KEYS_BY_ID, id, key);
+        return key;
+    }
+
+    /**
+     * Creates a new data key for a realm, which encrypts the values of the
+     * realm once the nodes have loaded it. The values encrypted using the
+     * previous data keys are re-encrypted by KeyRotationTask.
+     *
+     * @param session KeycloakSession
+     * @param realmId The realm ID
+     */
+    public static void rotate(KeycloakSession session, String realmId) {
+        if (ksf == null) {
+            return;
+        }
+        RealmDataKeyEntity entity = create(em(session), realmId);
+        logger.infof("Event: DATA_KEY_ROTATED, Realm: %s, Key: %s", realmId, entity.getId());
+    }
+
+    /**
+     * Creates the first data key of the realms that have none, rotates the
+     * data keys that are older than KC_PII_REALM_KEY_MAX_AGE and wraps the
+     * data keys that are not wrapped using the primary key again.
+     *
+     * @param session KeycloakSession
+     */
+    static void maintain(KeycloakSession session) {
+        if (ksf == null) {
+            return;
+        }
+        EntityManager em = em(session);
+        createMissing(em);
+        if (MAX_AGE_MILLIS > 0) {
+            List<String> expired = em.createQuery("SELECT k.realmId FROM RealmDataKeyEntity k GROUP BY k.realmId HAVING MAX(k.created) < :cutoff", String.class)
+                    .setParameter("cutoff", System.currentTimeMillis() - MAX_AGE_MILLIS)
+                    .getResultList();
+            for (String realmId : expired) {
+                rotate(session, realmId);
+            }
+        }
+        for (RealmDataKeyEntity entity : em.createQuery("SELECT k FROM RealmDataKeyEntity k", RealmDataKeyEntity.class).getResultList()) {
+            if (EncryptionUtils.needsReencryption(entity.getWrappedKey())) {
+                entity.setWrappedKey(wrap(unwrap(entity).aes.getEncoded(), entity.getRealmId(), entity.getId()));
+                logger.debugf("Event: DATA_KEY_REWRAPPED, Realm: %s, Key: %s", entity.getRealmId(), entity.getId());
+            }
+        }
+    }
+
+    /**
+     * Gets the creation time of the newest data key of all realms, which
+     * changes whenever any realm gets a new data key.
+     *
+     * @param session KeycloakSession
+     * @return The creation time, 0 if none
+     */
+    static long newestCreated(KeycloakSession session) {
+        if (ksf == null) {
+            return 0;
+        }
+        Long newest = em(session).createQuery("SELECT MAX(k.created) FROM RealmDataKeyEntity k", Long.class).getSingleResult();
+        return newest != null ? newest : 0;
+    }
+
+    /**
+     * Loads the newest data key of each realm, which encrypts the values of
+     * the realm from now on.
+     *
+     * @param session KeycloakSession
+     */
+    static void loadActiveKeys(KeycloakSession session) {
+        if (ksf == null) {
+            return;
+        }
+        List<RealmDataKeyEntity> newest = em(session).createQuery("SELECT k FROM RealmDataKeyEntity k WHERE k.generation = (SELECT MAX(n.generation) FROM RealmDataKeyEntity n WHERE n.realmId = k.realmId)", RealmDataKeyEntity.class)
+                .getResultList();
+        for (RealmDataKeyEntity entity : newest) {
+            try {
+                KeyRing.Key key = unwrap(entity);
+                KEYS_BY_REALM.put(entity.getRealmId(), key);
+                put(KEYS_BY_ID, key.id, key);
+            } catch (RuntimeException ex) {
+                logger.errorf(ex, "Event: DATA_KEY_UNAVAILABLE, Realm: %s, Key: %s", entity.getRealmId(), entity.getId());
+            }
+        }
+        logger.debugf("Event: DATA_KEYS_LOADED, Realms: %d", newest.size());
+    }
+
+    private static void createMissing(EntityManager em) {
+        if (EncryptionUtils.WRITE_SCHEME == null) {
+            return;
+        }
+        List<String> realmIds = em.createQuery("SELECT r.id FROM RealmEntity r WHERE NOT EXISTS (SELECT k.id FROM RealmDataKeyEntity k WHERE k.realmId = r.id)", String.class)
+                .getResultList();
+        for (String realmId : realmIds) {
+            create(em, realmId);
+        }
+    }
+
+    private static RealmDataKeyEntity create(EntityManager em, String realmId) {
+        Integer newest = em.createQuery("SELECT MAX(k.generation) FROM RealmDataKeyEntity k WHERE k.realmId = :realmId", Integer.class)
+                .setParameter("realmId", realmId)
+                .getSingleResult();
+        byte[] keyBytes = new byte[32];
+        RANDOM.nextBytes(keyBytes);
+        byte[] idBytes = new byte[6];
+        RANDOM.nextBytes(idBytes);
+        String id = HexFormat.of().formatHex(idBytes);
+        // the unique generation makes a concurrent creation for the same realm fail
+        RealmDataKeyEntity entity = new RealmDataKeyEntity(id, realmId, wrap(keyBytes, realmId, id), newest != null ? newest + 1 : 0, System.currentTimeMillis());
+        em.persist(entity);
+        em.flush();
+        logger.debugf("Event: DATA_KEY_CREATED, Realm: %s, Key: %s", realmId, id);
+        return entity;
+    }
+
+    private static String wrap(byte[] keyBytes, String realmId, String id) {
+        String wrapped = EncryptionUtils.encryptValue(Base64.getEncoder().encodeToString(keyBytes), associatedData(realmId, id));
+        if (!EncryptionUtils.isEncryptedValue(wrapped)) {
+            throw new IllegalStateException("Unable to wrap data key " + id);
+        }
+        return wrapped;
+    }
+
+    private static KeyRing.Key unwrap(RealmDataKeyEntity entity) {
+        String unwrapped = EncryptionUtils.tryDecryptValue(entity.getWrappedKey(), associatedData(entity.getRealmId(), entity.getId()));
+        if (unwrapped == null || EncryptionUtils.isEncryptedValue(unwrapped)) {
+            throw new IllegalStateException("Unable to unwrap data key " + entity.getId() + " of realm " + entity.getRealmId());
+        }
+        try {
+            return new KeyRing.Key(entity.getId(), new SecretKeySpec(Base64.getDecoder().decode(unwrapped), "AES"));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String associatedData(String realmId, String id) {
+        return "realm-data-key/" + realmId + "/" + id;
+    }
+
+    private static void put(Map<String, CachedKey> cache, String id, KeyRing.Key key) {
+        if (cache.size() >= CACHE_SIZE) {
+            cache.values().removeIf((c) -> !c.isFresh());
+            if (cache.size() >= CACHE_SIZE) {
+                cache.clear();
+            }
+        }
+        cache.put(id, new CachedKey(key));
+    }
+
+    private static EntityManager em(KeycloakSession session) {
+        return session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    }
+
+    private static class CachedKey {
+
+        final KeyRing.Key key;
+        final long expiry = System.nanoTime() + CACHE_TTL_SECONDS * 1_000_000_000L;
+
+        CachedKey(KeyRing.Key key) {
+            this.key = key;
+        }
+
+        boolean isFresh() {
+            return expiry - System.nanoTime() > 0;
+        }
+    }
+
+    // Makes this class un-instantiatable
+    private RealmDataKeys() {
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2025 Muhammad Lukman Nasaruddin <lukman.nasaruddin@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package my.unifi.eset.keycloak.piidataencryption.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Node-local state used by EncryptedUserProvider to look users up by username
+ * or email with as few queries as possible, i.e. which form (plain or hash) to
+ * query first for realms being migrated, which is the form that found a user
+ * most recently.
+ *
+ * Values that found no user are deliberately not remembered: Keycloak relies
+ * on these lookups to enforce the uniqueness of usernames & emails, so a
+ * stale negative entry on any node would let a duplicate through.
+ *
+ * @author MLukman (https://github.com/MLukman)
+ */
+public final class UserLookupCache {
+
+    public static final String USERNAME = "username";
+    public static final String EMAIL = "email";
+
+    private final Map<String, Boolean> hashFirst = new ConcurrentHashMap<>();
+
+    /**
+     * Decides whether the hash form should be queried before the plain form.
+     * Outside of migrations, users are in the form of the encryption state of
+     * the realm. During migrations, the form that found a user most recently
+     * is the one most likely to find the next one.
+     *
+     * @param realmId The realm ID
+     * @param encryptionEnabled Whether encryption is enabled for the realm
+     * @param migrating Whether the users of the realm are being migrated
+     * @return true to query the hash form first
+     */
+    public boolean isHashFirst(String realmId, boolean encryptionEnabled, boolean migrating) {
+        if (!migrating) {
+            hashFirst.remove(realmId);
+            return encryptionEnabled;
+        }
+        return hashFirst.getOrDefault(realmId, encryptionEnabled);
+    }
+
+    /**
+     * Records the form that found a user.
+     *
+     * @param realmId The realm ID
+     * @param hashed true if found using the hash form
+     */
+    public void found(String realmId, boolean hashed) {
+        hashFirst.put(realmId, hashed);
+    }
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2025 Muhammad Lukman Nasaruddin <lukman.nasaruddin@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package my.unifi.eset.keycloak.piidataencryption.jpa;
+
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.UserModel;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EncryptedUserProviderTest {
+
+    @Test
+    void testSearchesSupportedKeysInSinglePass() {
+        assertTrue(EncryptedUserProvider.isSinglePassSearch(Set.of(UserModel.SEARCH, UserModel.INCLUDE_SERVICE_ACCOUNT), null));
+        assertTrue(EncryptedUserProvider.isSinglePassSearch(Set.of(UserModel.EMAIL, UserModel.EXACT), null));
+    }
+
+    @Test
+    void testLeavesOtherKeysToTwoPasses() {
+        assertFalse(EncryptedUserProvider.isSinglePassSearch(Set.of(UserModel.SEARCH, UserModel.IDP_ALIAS), null));
+        assertFalse(EncryptedUserProvider.isSinglePassSearch(Set.of("pii-phone"), null));
+    }
+
+    @Test
+    void testLeavesAdminsRestrictedToGroupsToTwoPasses() {
+        assertFalse(EncryptedUserProvider.isSinglePassSearch(Set.of(UserModel.SEARCH), Set.of("group-1")));
+        // no viewable group at all must still restrict the results
+        assertFalse(EncryptedUserProvider.isSinglePassSearch(Set.of(UserModel.SEARCH), Set.of()));
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2025 Muhammad Lukman Nasaruddin <lukman.nasaruddin@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package my.unifi.eset.keycloak.piidataencryption.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import javax.crypto.spec.SecretKeySpec;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlindIndexTest {
+
+    private static final SecretKeySpec KEY = new SecretKeySpec("test-blind-index-key".getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+
+    private static Set<String> tokens(String field, String value) {
+        return BlindIndex.tokenHashes(KEY, 3, 8, field, List.of(value));
+    }
+
+    private static List<String> search(String term, boolean anywhere) {
+        return BlindIndex.searchHashes(KEY, 3, 8, term, List.of("firstName"), anywhere);
+    }
+
+    @Test
+    void testPrefixSearchMatchesValuePrefixes() {
+        Set<String> tokens = tokens("firstName", "Johnathan");
+
+        assertTrue(tokens.containsAll(search("john", false)));
+        assertTrue(tokens.containsAll(search("JOHN*", false)));
+        assertFalse(search("john", false).isEmpty());
+        assertFalse(tokens.containsAll(search("nathan", false)));
+    }
+
+    @Test
+    void testPrefixSearchIgnoresWordPrefixes() {
+        Set<String> tokens = tokens("firstName", "Mary Jane");
+
+        assertFalse(tokens.stream().anyMatch(search("jane", false)::contains));
+        assertTrue(tokens.stream().anyMatch(search("*jane", true)::contains));
+    }
+
+    @Test
+    void testEmailDomainOnlyMatchedAnywhere() {
+        Set<String> tokens = tokens("email", "john@example.com");
+        List<String> anywhere = BlindIndex.searchHashes(KEY, 3, 8, "*@exam*", List.of("email"), true);
+        List<String> prefix = BlindIndex.searchHashes(KEY, 3, 8, "@exam", List.of("email"), false);
+
+        assertTrue(tokens.stream().anyMatch(anywhere::contains));
+        assertFalse(tokens.stream().anyMatch(prefix::contains));
+    }
+
+    @Test
+    void testUnusableTerms() {
+        assertTrue(search("john*smith", false).isEmpty());
+        assertTrue(search("*john", false).isEmpty());
+        assertTrue(search("jo", false).isEmpty());
+        assertTrue(search("johnathan", false).isEmpty());
+        assertTrue(search("\"john\"", false).isEmpty());
+        assertTrue(search(null, false).isEmpty());
+    }
+
+    @Test
+    void testFieldsAreNotCorrelated() {
+        assertNotEquals(search("john", false), BlindIndex.searchHashes(KEY, 3, 8, "john", List.of("lastName"), false));
+    }
+}
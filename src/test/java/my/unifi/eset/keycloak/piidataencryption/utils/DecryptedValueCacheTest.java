@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2025 Muhammad Lukman Nasaruddin <lukman.nasaruddin@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package my.unifi.eset.keycloak.piidataencryption.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DecryptedValueCacheTest {
+
+    @Test
+    void testDisabledByDefault() {
+        DecryptedValueCache cache = new DecryptedValueCache(0, 1024, 60);
+        cache.put("$$$a", "a");
+
+        assertFalse(cache.isEnabled());
+        assertNull(cache.get("$$$a"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void testHitsAndMisses() {
+        DecryptedValueCache cache = new DecryptedValueCache(1000, 1024 * 1024, 60);
+        assertNull(cache.get("$$$a"));
+        cache.put("$$$a", "a");
+
+        assertEquals("a", cache.get("$$$a"));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        cache.clear();
+        assertNull(cache.get("$$$a"));
+    }
+
+    @Test
+    void testEvictsLeastRecentlyUsed() {
+        // 16 entries spread across the segments means one entry per segment
+        DecryptedValueCache cache = new DecryptedValueCache(16, 1024 * 1024, 60);
+        for (int i = 0; i < 1000; i++) {
+            cache.put("$$$" + i, String.valueOf(i));
+        }
+
+        assertTrue(cache.size() <= 16);
+        assertTrue(cache.getEvictions() >= 1000 - 16);
+        assertEquals("999", cache.get("$$$999"));
+    }
+
+    @Test
+    void testBoundedByBytes() {
+        DecryptedValueCache cache = new DecryptedValueCache(1000, 16 * 1024, 60);
+        String large = "x".repeat(4096);
+        for (int i = 0; i < 100; i++) {
+            cache.put("$$$" + i, large);
+        }
+
+        assertTrue(cache.size() < 100);
+    }
+}
@@ -28,6 +28,12 @@ import uk.org.webcompere.systemstubs.jupiter.SystemStub;
 import uk.org.webcompere.systemstubs.jupiter.SystemStubsExtension;
 
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -42,7 +48,7 @@ class EncryptionUtilsTest {
 
     @BeforeEach
     void setUp() {
-        EncryptionUtils.key = null;
+        EncryptionUtils.KEYS.set(null);
 
         environmentVariables.set(envVarKey, validEncKey);
     }
@@ -56,6 +62,21 @@ class EncryptionUtilsTest {
         assertEquals("test", decryptedValue);
     }
 
+    @Test
+    void testEncryptDecryptConcurrently() throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            String value = "user" + i + "@example.com";
+            results.add(executor.submit(() -> value.equals(EncryptionUtils.decryptValue(EncryptionUtils.encryptValue(value)))));
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+        for (Future<Boolean> result : results) {
+            assertDoesNotThrow(() -> assertTrue(result.get()));
+        }
+    }
+
     @Test
     void testDecryptValue() throws NoSuchAlgorithmException {
         SecretKey key = EncryptionUtils.getEncryptionKey();
@@ -65,6 +86,67 @@ class EncryptionUtilsTest {
         assertEquals("test", decryptedValue);
     }
 
+    @Test
+    void testAuthenticatedFormat() {
+        String associatedData = EncryptionUtils.associatedData("user-1", "email");
+        String encryptedValue = EncryptionUtils.encryptValue("test@example.com", associatedData);
+
+        assertTrue(encryptedValue.startsWith(EncryptionUtils.CIPHERTEXT_PREFIX + EncryptionUtils.SCHEME_AES_GCM + ":"));
+        assertTrue(EncryptionUtils.isAuthenticatedValue(encryptedValue));
+        assertEquals("test@example.com", EncryptionUtils.decryptValue(encryptedValue, associatedData));
+    }
+
+    @Test
+    void testAuthenticatedFormatRejectsOtherAssociatedDataOrTampering() {
+        String encryptedValue = EncryptionUtils.encryptValue("test@example.com", EncryptionUtils.associatedData("user-1", "email"));
+
+        assertNull(EncryptionUtils.tryDecryptValue(encryptedValue, EncryptionUtils.associatedData("user-2", "email")));
+        assertNull(EncryptionUtils.tryDecryptValue(encryptedValue, EncryptionUtils.associatedData("user-1", "firstName")));
+
+        int middle = encryptedValue.length() / 2;
+        String tampered = encryptedValue.substring(0, middle) + (encryptedValue.charAt(middle) == 'A' ? 'B' : 'A') + encryptedValue.substring(middle + 1);
+        assertNull(EncryptionUtils.tryDecryptValue(tampered, EncryptionUtils.associatedData("user-1", "email")));
+    }
+
+    @Test
+    void testLegacyFormatIsNotAuthenticated() {
+        assertFalse(EncryptionUtils.isAuthenticatedValue("$$$GTaogsGC8vbgE098AN9kC+UCHD8vYzVgFF0hFDnuKIw="));
+        assertEquals("test", EncryptionUtils.tryDecryptValue("$$$GTaogsGC8vbgE098AN9kC+UCHD8vYzVgFF0hFDnuKIw=", "ignored"));
+    }
+
+    @Test
+    void testDecryptUsingPreviousKey() {
+        String associatedData = EncryptionUtils.associatedData("user-1", "email");
+        String encryptedValue = EncryptionUtils.encryptValue("test@example.com", associatedData);
+        assertFalse(EncryptionUtils.needsReencryption(encryptedValue));
+
+        EncryptionUtils.KEYS.set(null);
+        environmentVariables.set(envVarKey, "6543211987654321");
+        assertNull(EncryptionUtils.tryDecryptValue(encryptedValue, associatedData), "unknown key ID must not be decrypted");
+
+        EncryptionUtils.KEYS.set(null);
+        environmentVariables.set("KC_PII_ENCKEY_PREVIOUS", validEncKey);
+        assertEquals("test@example.com", EncryptionUtils.decryptValue(encryptedValue, associatedData));
+        assertEquals("test", EncryptionUtils.decryptValue("$$$GTaogsGC8vbgE098AN9kC+UCHD8vYzVgFF0hFDnuKIw="));
+        assertTrue(EncryptionUtils.needsReencryption(encryptedValue));
+        assertFalse(EncryptionUtils.needsReencryption(EncryptionUtils.encryptValue("test@example.com", associatedData)));
+    }
+
+    @Test
+    void testPublishKeys() throws NoSuchAlgorithmException {
+        String encryptedValue = EncryptionUtils.encryptValue("test");
+        SecretKeySpec newKey = new SecretKeySpec("6543211987654321".getBytes(), "AES");
+        SecretKeySpec oldKey = new SecretKeySpec(validEncKey.getBytes(), "AES");
+
+        assertTrue(EncryptionUtils.publishKeys(List.of(newKey, oldKey)));
+        assertFalse(EncryptionUtils.publishKeys(List.of(newKey, oldKey)), "same keys must not be published again");
+        assertEquals("test", EncryptionUtils.decryptValue(encryptedValue));
+        assertNotEquals(EncryptionUtils.keyIdOf(encryptedValue), EncryptionUtils.keyIdOf(EncryptionUtils.encryptValue("test")));
+
+        assertTrue(EncryptionUtils.publishKeys(List.of(newKey)));
+        assertNull(EncryptionUtils.tryDecryptValue(encryptedValue, null));
+    }
+
     @Test
     void testWrongKeySize() {
         environmentVariables.set(envVarKey, "invalid");
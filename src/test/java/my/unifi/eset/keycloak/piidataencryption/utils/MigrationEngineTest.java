@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2025 Muhammad Lukman Nasaruddin <lukman.nasaruddin@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package my.unifi.eset.keycloak.piidataencryption.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MigrationEngineTest {
+
+    @Test
+    void testCountsOnlyUsersUpToTheWatermark() {
+        MigrationEngine.Report report = new MigrationEngine.Report("realm", MigrationEngine.Mode.ENCRYPT);
+        List<String> watermarks = new ArrayList<>();
+        MigrationEngine.Checkpoint checkpoint = (lastUserId, progress) -> watermarks.add(lastUserId);
+        Object first = report.submitted(List.of("a", "b"));
+        Object second = report.submitted(List.of("c", "d", "e"));
+        Object third = report.submitted(List.of("f"));
+
+        report.completed(third, true, checkpoint);
+        assertTrue(watermarks.isEmpty());
+        assertEquals(0, report.getCheckpointedUsers());
+
+        report.completed(first, true, checkpoint);
+        assertEquals(List.of("b"), watermarks);
+        assertEquals(2, report.getCheckpointedUsers());
+
+        report.completed(second, false, checkpoint);
+        assertEquals(List.of("b"), watermarks);
+        assertEquals(2, report.getCheckpointedUsers());
+    }
+
+    @Test
+    void testCountsAllUsersWhenEveryRangeSucceeds() {
+        MigrationEngine.Report report = new MigrationEngine.Report("realm", MigrationEngine.Mode.DECRYPT);
+        Object first = report.submitted(List.of("a", "b"));
+        Object second = report.submitted(List.of("c"));
+
+        report.completed(second, true, null);
+        report.completed(first, true, null);
+        assertEquals(3, report.getCheckpointedUsers());
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2025 Muhammad Lukman Nasaruddin <lukman.nasaruddin@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package my.unifi.eset.keycloak.piidataencryption.utils;
+
+import my.unifi.eset.keycloak.piidataencryption.jpa.UserEncryptionJobEntity;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MigrationJobRunnerTest {
+
+    private static final long NOW = 1_000_000_000L;
+
+    private static UserEncryptionJobEntity job(String state, String owner, long heartbeat, long updated) {
+        UserEncryptionJobEntity job = new UserEncryptionJobEntity("realm");
+        job.setState(state);
+        job.setOwner(owner);
+        job.setHeartbeat(heartbeat);
+        job.setUpdated(updated);
+        return job;
+    }
+
+    @Test
+    void testClaimsPendingJobs() {
+        assertTrue(MigrationJobRunner.isClaimable(job(UserEncryptionJobEntity.STATE_PENDING, null, 0, NOW), NOW, false));
+        assertFalse(MigrationJobRunner.isClaimable(job(UserEncryptionJobEntity.STATE_PENDING, null, 0, NOW), NOW, true));
+    }
+
+    @Test
+    void testLeavesJobsRunOnOtherNodesUntilTheLeaseExpires() {
+        assertFalse(MigrationJobRunner.isClaimable(job(UserEncryptionJobEntity.STATE_RUNNING, "other", NOW, NOW), NOW, false));
+        assertTrue(MigrationJobRunner.isClaimable(job(UserEncryptionJobEntity.STATE_RUNNING, "other", NOW - MigrationJobRunner.LEASE_MILLIS - 1, NOW), NOW, false));
+    }
+
+    @Test
+    void testResumesFailedJobsOnceTheLeaseHasPassed() {
+        assertFalse(MigrationJobRunner.isClaimable(job(UserEncryptionJobEntity.STATE_FAILED, null, NOW, NOW), NOW, false));
+        assertTrue(MigrationJobRunner.isClaimable(job(UserEncryptionJobEntity.STATE_FAILED, null, NOW, NOW - MigrationJobRunner.LEASE_MILLIS - 1), NOW, false));
+    }
+
+    @Test
+    void testReclaimsOwnJobsThatAreNoLongerRunning() {
+        UserEncryptionJobEntity job = job(UserEncryptionJobEntity.STATE_RUNNING, MigrationJobRunner.NODE, NOW, NOW);
+        assertFalse(MigrationJobRunner.isClaimable(job, NOW, true));
+        assertTrue(MigrationJobRunner.isClaimable(job, NOW, false));
+    }
+}
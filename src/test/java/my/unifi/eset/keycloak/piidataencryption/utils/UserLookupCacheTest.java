@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2025 Muhammad Lukman Nasaruddin <lukman.nasaruddin@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package my.unifi.eset.keycloak.piidataencryption.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UserLookupCacheTest {
+
+    @Test
+    void testFollowsEncryptionStateOutsideOfMigrations() {
+        UserLookupCache cache = new UserLookupCache();
+
+        assertTrue(cache.isHashFirst("realm", true, false));
+        assertFalse(cache.isHashFirst("realm", false, false));
+    }
+
+    @Test
+    void testPrefersLastFoundFormDuringMigrations() {
+        UserLookupCache cache = new UserLookupCache();
+        assertTrue(cache.isHashFirst("realm", true, true));
+
+        cache.found("realm", false);
+        assertFalse(cache.isHashFirst("realm", true, true));
+        assertTrue(cache.isHashFirst("other", true, true));
+
+        cache.found("realm", true);
+        assertTrue(cache.isHashFirst("realm", false, true));
+    }
+
+    @Test
+    void testForgetsPreferenceOnceMigrationEnds() {
+        UserLookupCache cache = new UserLookupCache();
+        cache.found("realm", false);
+
+        assertTrue(cache.isHashFirst("realm", true, false));
+        assertTrue(cache.isHashFirst("realm", true, true));
+    }
+}